@@ -0,0 +1,159 @@
+/*
+ * Entradas JNI de OpusCodec.
+ *
+ * Todas las entradas de audio trabajan sobre buffers directos: se lee y se
+ * escribe en la memoria del buffer sin copias de arrays JNI ni asignaciones.
+ * Los desplazamientos y longitudes vienen en elementos del buffer (muestras
+ * para ShortBuffer, bytes para ByteBuffer) y se validan contra su capacidad
+ * antes de tocar la memoria.
+ */
+
+#include <jni.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <opus.h>
+
+#define OPUS_JNI(name) Java_com_atakmap_android_murmurptt_audio_OpusCodec_##name
+
+/* Estado nativo: opus no permite consultar el número de canales */
+typedef struct {
+    OpusEncoder *encoder;
+    int channels;
+} Encoder;
+
+typedef struct {
+    OpusDecoder *decoder;
+    int channels;
+} Decoder;
+
+/* Dirección de elementos [offset, offset + count) de un buffer directo, o NULL */
+static void *direct_range(JNIEnv *env, jobject buffer, jint offset, jint count, size_t elementSize) {
+    if (buffer == NULL || offset < 0 || count < 0) return NULL;
+    char *base = (*env)->GetDirectBufferAddress(env, buffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    if (base == NULL || capacity < 0 || (jlong) offset + count > capacity) return NULL;
+    return base + (size_t) offset * elementSize;
+}
+
+JNIEXPORT jlong JNICALL
+OPUS_JNI(createEncoder)(JNIEnv *env, jobject thiz, jint sampleRate, jint channels) {
+    int error;
+    Encoder *enc = malloc(sizeof(Encoder));
+    if (enc == NULL) return 0;
+    enc->encoder = opus_encoder_create(sampleRate, channels, OPUS_APPLICATION_VOIP, &error);
+    if (error != OPUS_OK || enc->encoder == NULL) {
+        free(enc);
+        return 0;
+    }
+    enc->channels = channels;
+    return (jlong) (intptr_t) enc;
+}
+
+JNIEXPORT jlong JNICALL
+OPUS_JNI(createDecoder)(JNIEnv *env, jobject thiz, jint sampleRate, jint channels) {
+    int error;
+    Decoder *dec = malloc(sizeof(Decoder));
+    if (dec == NULL) return 0;
+    dec->decoder = opus_decoder_create(sampleRate, channels, &error);
+    if (error != OPUS_OK || dec->decoder == NULL) {
+        free(dec);
+        return 0;
+    }
+    dec->channels = channels;
+    return (jlong) (intptr_t) dec;
+}
+
+JNIEXPORT jint JNICALL
+OPUS_JNI(nativeEncodeDirect)(JNIEnv *env, jobject thiz, jlong handle,
+                             jobject pcm, jint pcmOffset, jint frameSize,
+                             jobject out, jint outOffset, jint maxLength) {
+    Encoder *enc = (Encoder *) (intptr_t) handle;
+    if (enc == NULL || frameSize <= 0) return OPUS_BAD_ARG;
+
+    const opus_int16 *in = direct_range(env, pcm, pcmOffset, frameSize * enc->channels,
+                                        sizeof(opus_int16));
+    unsigned char *data = direct_range(env, out, outOffset, maxLength, 1);
+    if (in == NULL || data == NULL) return OPUS_BAD_ARG;
+
+    return opus_encode(enc->encoder, in, frameSize, data, maxLength);
+}
+
+JNIEXPORT jint JNICALL
+OPUS_JNI(nativeDecodeDirect)(JNIEnv *env, jobject thiz, jlong handle,
+                             jobject opus, jint opusOffset, jint length,
+                             jobject pcm, jint pcmOffset, jint frameSize, jboolean fec) {
+    Decoder *dec = (Decoder *) (intptr_t) handle;
+    if (dec == NULL || frameSize <= 0) return OPUS_BAD_ARG;
+
+    opus_int16 *outPcm = direct_range(env, pcm, pcmOffset, frameSize * dec->channels,
+                                      sizeof(opus_int16));
+    if (outPcm == NULL) return OPUS_BAD_ARG;
+
+    /* Sin paquete: ocultación de pérdida (PLC) */
+    const unsigned char *data = NULL;
+    if (opus != NULL && length > 0) {
+        data = direct_range(env, opus, opusOffset, length, 1);
+        if (data == NULL) return OPUS_BAD_ARG;
+    } else {
+        length = 0;
+    }
+
+    return opus_decode(dec->decoder, data, length, outPcm, frameSize, fec ? 1 : 0);
+}
+
+JNIEXPORT jint JNICALL
+OPUS_JNI(nativeSetBitrate)(JNIEnv *env, jobject thiz, jlong handle, jint bitsPerSecond) {
+    Encoder *enc = (Encoder *) (intptr_t) handle;
+    if (enc == NULL) return OPUS_BAD_ARG;
+    return opus_encoder_ctl(enc->encoder, OPUS_SET_BITRATE(bitsPerSecond));
+}
+
+JNIEXPORT jint JNICALL
+OPUS_JNI(nativeSetComplexity)(JNIEnv *env, jobject thiz, jlong handle, jint complexity) {
+    Encoder *enc = (Encoder *) (intptr_t) handle;
+    if (enc == NULL) return OPUS_BAD_ARG;
+    return opus_encoder_ctl(enc->encoder, OPUS_SET_COMPLEXITY(complexity));
+}
+
+JNIEXPORT jint JNICALL
+OPUS_JNI(nativeSetInbandFec)(JNIEnv *env, jobject thiz, jlong handle, jboolean enabled) {
+    Encoder *enc = (Encoder *) (intptr_t) handle;
+    if (enc == NULL) return OPUS_BAD_ARG;
+    return opus_encoder_ctl(enc->encoder, OPUS_SET_INBAND_FEC(enabled ? 1 : 0));
+}
+
+JNIEXPORT jint JNICALL
+OPUS_JNI(nativeSetPacketLossPerc)(JNIEnv *env, jobject thiz, jlong handle, jint percent) {
+    Encoder *enc = (Encoder *) (intptr_t) handle;
+    if (enc == NULL) return OPUS_BAD_ARG;
+    return opus_encoder_ctl(enc->encoder, OPUS_SET_PACKET_LOSS_PERC(percent));
+}
+
+JNIEXPORT jint JNICALL
+OPUS_JNI(nativeSetDtx)(JNIEnv *env, jobject thiz, jlong handle, jboolean enabled) {
+    Encoder *enc = (Encoder *) (intptr_t) handle;
+    if (enc == NULL) return OPUS_BAD_ARG;
+    return opus_encoder_ctl(enc->encoder, OPUS_SET_DTX(enabled ? 1 : 0));
+}
+
+JNIEXPORT void JNICALL
+OPUS_JNI(destroyEncoder)(JNIEnv *env, jobject thiz, jlong handle) {
+    Encoder *enc = (Encoder *) (intptr_t) handle;
+    if (enc == NULL) return;
+    opus_encoder_destroy(enc->encoder);
+    free(enc);
+}
+
+JNIEXPORT void JNICALL
+OPUS_JNI(destroyDecoder)(JNIEnv *env, jobject thiz, jlong handle) {
+    Decoder *dec = (Decoder *) (intptr_t) handle;
+    if (dec == NULL) return;
+    opus_decoder_destroy(dec->decoder);
+    free(dec);
+}
+
+JNIEXPORT jint JNICALL
+OPUS_JNI(nativeGetDecoderSize)(JNIEnv *env, jclass clazz, jint channels) {
+    int size = opus_decoder_get_size(channels);
+    return size > 0 ? size + (jint) sizeof(Decoder) : size;
+}
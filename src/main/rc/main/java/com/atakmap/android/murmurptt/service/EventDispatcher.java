@@ -0,0 +1,174 @@
+package com.atakmap.android.murmurptt.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.atakmap.android.murmurptt.audio.LatencyStats;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Etapa de despacho de eventos a los PTTListener en un thread propio.
+ *
+ * El thread de E/S de red, el de captura y el de la UI solo encolan; un
+ * listener lento (la UI, p. ej.) retrasa otros eventos pero nunca la lectura
+ * de paquetes ni el audio. La cola es acotada y post() no bloquea nunca.
+ * Política de desbordamiento: los eventos descartables (actividad de voz,
+ * muy frecuentes y sustituidos por el siguiente) solo se aceptan hasta la
+ * mitad de la capacidad, para dejar sitio a los de estado (conexión,
+ * usuarios, errores), que solo se descartan con la cola llena. Se mide el
+ * tiempo en cola de cada evento y los descartes.
+ */
+public class EventDispatcher {
+    
+    private static final String TAG = "EventDispatcher";
+    private static final int DEFAULT_CAPACITY = 256;
+    // Objetivo de tiempo en cola de un evento
+    private static final long QUEUE_LATENCY_TARGET_MS = 50;
+    // Un listener que tarda más se registra como lento
+    private static final long SLOW_EVENT_MS = 100;
+    
+    private static final class Event {
+        final Runnable task;
+        final long enqueuedMs;
+        
+        Event(Runnable task, long enqueuedMs) {
+            this.task = task;
+            this.enqueuedMs = enqueuedMs;
+        }
+    }
+    
+    private final int capacity;
+    private final ArrayBlockingQueue<Event> queue;
+    private final LatencyStats queueLatency = new LatencyStats(QUEUE_LATENCY_TARGET_MS);
+    private Thread thread;
+    private volatile boolean running = false;
+    
+    // Contadores de los productores (varios threads)
+    private final AtomicLong posted = new AtomicLong();
+    private final AtomicLong droppedDroppable = new AtomicLong();
+    private final AtomicLong droppedEssential = new AtomicLong();
+    private volatile int maxDepth = 0;
+    // Contadores del thread de despacho
+    private volatile long dispatched = 0;
+    private volatile long slowEvents = 0;
+    
+    public EventDispatcher() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    public EventDispatcher(int capacity) {
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+    
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this::dispatchLoop, "PTTEvents");
+        thread.start();
+    }
+    
+    /**
+     * Detener tras despachar los eventos ya encolados (espera como máximo timeoutMs)
+     */
+    public void stop(long timeoutMs) {
+        Thread t;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            t = thread;
+        }
+        try {
+            t.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (t.isAlive()) {
+            t.interrupt();
+        }
+    }
+    
+    /**
+     * Encolar un evento de estado. Solo se descarta con la cola llena.
+     */
+    public boolean post(Runnable task) {
+        return enqueue(task, false);
+    }
+    
+    /**
+     * Encolar un evento descartable: se descarta si la cola pasa de la mitad
+     */
+    public boolean postDroppable(Runnable task) {
+        return enqueue(task, true);
+    }
+    
+    private boolean enqueue(Runnable task, boolean droppable) {
+        if (!running) return false;
+        posted.incrementAndGet();
+        if (droppable && queue.size() >= capacity / 2) {
+            droppedDroppable.incrementAndGet();
+            return false;
+        }
+        if (!queue.offer(new Event(task, SystemClock.elapsedRealtime()))) {
+            Log.w(TAG, "Cola de eventos llena, evento descartado (" + droppedEssential.incrementAndGet() + ")");
+            return false;
+        }
+        int depth = queue.size();
+        if (depth > maxDepth) {
+            // Aproximado con varios productores; solo es una métrica
+            maxDepth = depth;
+        }
+        return true;
+    }
+    
+    private void dispatchLoop() {
+        while (running || !queue.isEmpty()) {
+            Event event;
+            try {
+                event = queue.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (event == null) continue;
+            
+            long start = SystemClock.elapsedRealtime();
+            queueLatency.record(start - event.enqueuedMs);
+            try {
+                event.task.run();
+            } catch (Exception e) {
+                Log.e(TAG, "Error en listener", e);
+            }
+            dispatched++;
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            if (elapsed > SLOW_EVENT_MS) {
+                slowEvents++;
+                Log.w(TAG, "Listener lento: " + elapsed + " ms");
+            }
+        }
+    }
+    
+    /**
+     * Tiempo en cola de los eventos, desde post() hasta su despacho
+     */
+    public LatencyStats getQueueLatency() {
+        return queueLatency;
+    }
+    
+    public int getQueueDepth() { return queue.size(); }
+    public int getMaxQueueDepth() { return maxDepth; }
+    public long getPosted() { return posted.get(); }
+    public long getDispatched() { return dispatched; }
+    public long getDroppedDroppable() { return droppedDroppable.get(); }
+    public long getDroppedEssential() { return droppedEssential.get(); }
+    public long getSlowEvents() { return slowEvents; }
+    
+    @Override
+    public String toString() {
+        return String.format("cola=%d (máx %d) despachados=%d descartados=%d+%d lentos=%d latencia: %s",
+            getQueueDepth(), maxDepth, dispatched, droppedDroppable.get(), droppedEssential.get(),
+            slowEvents, queueLatency);
+    }
+}
@@ -7,29 +7,47 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.os.Binder;
 import android.os.Build;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
 import com.atakmap.android.murmurptt.R;
+import com.atakmap.android.murmurptt.audio.AudioCaptureThread;
+import com.atakmap.android.murmurptt.audio.AudioFramePool;
+import com.atakmap.android.murmurptt.audio.AudioPlaybackEngine;
+import com.atakmap.android.murmurptt.audio.BitrateController;
+import com.atakmap.android.murmurptt.audio.FrameTimingStats;
+import com.atakmap.android.murmurptt.audio.JitterBuffer;
+import com.atakmap.android.murmurptt.audio.LatencyStats;
 import com.atakmap.android.murmurptt.audio.OpusCodec;
+import com.atakmap.android.murmurptt.audio.VoiceActivityDetector;
 import com.atakmap.android.murmurptt.model.MurmurServer;
 import com.atakmap.android.murmurptt.model.MurmurUser;
 import com.atakmap.android.murmurptt.model.PTTState;
+import com.atakmap.android.murmurptt.network.ConnectTiming;
+import com.atakmap.android.murmurptt.network.ControlTransport;
 import com.atakmap.android.murmurptt.network.MumbleProtocol;
 import com.atakmap.android.murmurptt.network.MurmurConnection;
+import com.atakmap.android.murmurptt.network.NetworkStats;
+import com.atakmap.android.murmurptt.network.PathManager;
+import com.atakmap.android.murmurptt.network.TlsChannel;
+import com.atakmap.android.murmurptt.network.TlsSessionCache;
+import com.atakmap.android.murmurptt.network.VoicePacket;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -43,6 +61,8 @@ public class PTTService extends Service {
     
     private static final String TAG = "PTTService";
     private static final String CHANNEL_ID = "MurmurPTT_Channel";
+    private static final String PREFS_NAME = "murmurptt";
+    private static final String PREF_PRE_ARM = "pre_arm_enabled";
     private static final int NOTIFICATION_ID = 1001;
     
     // Configuración de audio
@@ -50,27 +70,65 @@ public class PTTService extends Service {
     private static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
     private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
     private static final int FRAME_SIZE = 960; // 20ms a 48kHz
+    private static final int FRAME_MS = 20;
     private static final int BUFFER_SIZE = FRAME_SIZE * 2; // 16-bit
+    // El thread de captura devuelve cada trama antes de leer la siguiente
+    private static final int TX_POOL_SIZE = 1;
+    // Tramas previas a la detección de voz que se envían al abrir VOX
+    private static final int VOX_PRE_ROLL_FRAMES = 2;
+    private static final long FRAME_PERIOD_NANOS = 20000000L;
+    // Objetivo de latencia pulsación -> primer paquete entregado a la conexión
+    private static final long PRESS_TO_SEND_TARGET_MS = 50;
+    // Objetivo de tiempo sin audio al reconectar tras una pérdida de conexión
+    private static final long RECONNECT_TARGET_MS = 2000;
+    // WakeLock de VOX: se renueva desde la captura antes de que expire
+    private static final long VOX_WAKELOCK_TIMEOUT_MS = 10 * 60 * 1000L;
+    private static final long VOX_WAKELOCK_RENEW_MS = 5 * 60 * 1000L;
     
     private final IBinder binder = new PTTBinder();
     private ExecutorService executorService;
-    private Handler audioHandler;
+    // Thread de E/S compartido por los canales de control de todos los servidores
+    private ControlTransport controlTransport;
+    // Contexto TLS compartido: las reconexiones y reinicios reanudan la sesión
+    private TlsSessionCache tlsSessionCache;
     private PowerManager.WakeLock wakeLock;
     
     // Gestión de servidores
     private ConcurrentHashMap<String, MurmurConnection> connections;
+    // Control de tasa del codificador por conexión
+    private ConcurrentHashMap<String, BitrateController> bitrateControllers;
     private CopyOnWriteArrayList<PTTListener> listeners;
+    // Los PTTListener se llaman desde un thread propio, nunca desde los de red, captura o UI
+    private final EventDispatcher eventDispatcher = new EventDispatcher();
     
     // Audio
     private AudioRecord audioRecord;
     private OpusCodec opusCodec;
+    private AudioFramePool txFramePool;
+    private AudioPlaybackEngine playbackEngine;
     private boolean isTransmitting = false;
     private String activeChannel = null;
     private String activeServer = null;
     
-    // Thread de audio
-    private HandlerThread audioThread;
-    private Runnable audioCaptureRunnable;
+    // Thread de captura de audio
+    private AudioCaptureThread captureThread;
+    private volatile MurmurConnection txConnection;
+    
+    // Modo VOX: el micrófono queda abierto y el detector de voz decide qué se envía
+    private final VoiceActivityDetector voiceDetector = new VoiceActivityDetector(FRAME_MS);
+    private volatile boolean voxMode = false;
+    private volatile long txPacketsSent = 0;
+    private volatile long txFramesSuppressed = 0;
+    
+    // Ruta pre-armada: grabación y codificador activos desde la conexión; la
+    // pulsación PTT solo abre la compuerta de envío. Desactivada por defecto:
+    // mantiene el micrófono abierto (indicador de privacidad, batería)
+    private volatile boolean preArmEnabled = false;
+    private volatile boolean armed = false;
+    private volatile boolean txGate = false;
+    private volatile long pressUptimeMs = 0;
+    private final LatencyStats pressToSendStats = new LatencyStats(PRESS_TO_SEND_TARGET_MS);
+    private final LatencyStats reconnectStats = new LatencyStats(RECONNECT_TARGET_MS);
     
     public class PTTBinder extends Binder {
         public PTTService getService() {
@@ -78,11 +136,23 @@ public class PTTService extends Service {
         }
     }
     
+    /**
+     * Eventos del servicio. Se llaman en orden desde el thread de eventos
+     * (EventDispatcher), no desde los de red o audio.
+     */
     public interface PTTListener {
         void onConnectionStateChanged(String serverId, PTTState state);
         void onUserJoined(String serverId, MurmurUser user);
         void onUserLeft(String serverId, MurmurUser user);
-        void onAudioReceived(String serverId, byte[] audioData, MurmurUser from);
+        /**
+         * Cambios de estado de un usuario; changes es una máscara de
+         * MurmurUser.CHANGED_* para actualizar solo lo que ha cambiado
+         */
+        void onUserChanged(String serverId, MurmurUser user, int changes);
+        /**
+         * Voz recibida de un usuario; terminator indica el fin de su transmisión
+         */
+        void onAudioReceived(String serverId, MurmurUser from, boolean terminator);
         void onTransmissionStarted(String serverId, String channel);
         void onTransmissionEnded(String serverId);
         void onError(String serverId, String error);
@@ -94,21 +164,46 @@ public class PTTService extends Service {
         Log.i(TAG, "Creando servicio PTT");
         
         connections = new ConcurrentHashMap<>();
+        bitrateControllers = new ConcurrentHashMap<>();
         listeners = new CopyOnWriteArrayList<>();
+        eventDispatcher.start();
+        preArmEnabled = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_PRE_ARM, false);
+        
+        // Inicializar Opus (solo codificador; cada hablante recibido tiene su decodificador)
+        opusCodec = OpusCodec.createEncoderOnly(SAMPLE_RATE, 1);
+        opusCodec.setInbandFec(true);
+        opusCodec.setPacketLossPercent(BitrateController.DEFAULT_LOSS_PERCENT);
+        opusCodec.setDtx(true);
+        txFramePool = new AudioFramePool(TX_POOL_SIZE, FRAME_SIZE);
         
-        // Inicializar Opus
-        opusCodec = new OpusCodec(SAMPLE_RATE, 1);
+        // Thread dedicado de captura
+        captureThread = new AudioCaptureThread(txFramePool, FRAME_PERIOD_NANOS, captureHandler);
+        captureThread.start();
         
-        // Thread para audio
-        audioThread = new HandlerThread("PTTAudioThread");
-        audioThread.start();
-        audioHandler = new Handler(audioThread.getLooper());
+        // Reproducción de audio recibido
+        playbackEngine = new AudioPlaybackEngine(SAMPLE_RATE, FRAME_SIZE);
+        playbackEngine.start();
         
         executorService = Executors.newCachedThreadPool();
         
+        controlTransport = new ControlTransport();
+        try {
+            controlTransport.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Error iniciando transporte de red", e);
+        }
+        try {
+            tlsSessionCache = new TlsSessionCache(MurmurConnection.createSSLContext(),
+                                                  new File(getCacheDir(), "tls_sessions"));
+        } catch (Exception e) {
+            Log.e(TAG, "Error creando contexto TLS", e);
+        }
+        
         // WakeLock para mantener CPU activa durante transmisión
         PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
         wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MurmurPTT::PTTWakelock");
+        // Sin contar referencias: renovar solo amplía el plazo y release() lo libera
+        wakeLock.setReferenceCounted(false);
         
         createNotificationChannel();
         startForeground(NOTIFICATION_ID, buildNotification());
@@ -128,18 +223,29 @@ public class PTTService extends Service {
     public void onDestroy() {
         Log.i(TAG, "Destruyendo servicio PTT");
         
+        preArmEnabled = false;
         disconnectAllServers();
+        controlTransport.stop();
+        // Entregar los eventos de desconexión pendientes
+        eventDispatcher.stop(500);
         
         if (wakeLock.isHeld()) {
             wakeLock.release();
         }
         
+        captureThread.shutdown();
+        try {
+            captureThread.join(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
         if (audioRecord != null) {
             audioRecord.release();
         }
         
+        playbackEngine.stop();
         opusCodec.destroy();
-        audioThread.quitSafely();
         executorService.shutdown();
         
         super.onDestroy();
@@ -155,44 +261,111 @@ public class PTTService extends Service {
             Log.w(TAG, "Ya conectado a servidor: " + server.getId());
             return;
         }
+        if (tlsSessionCache == null) {
+            notifyError(server.getId(), "Error de conexión: TLS no disponible");
+            return;
+        }
         
-        executorService.execute(() -> {
-            MurmurConnection connection = new MurmurConnection(server, new MurmurConnection.ConnectionListener() {
-                @Override
-                public void onConnected() {
-                    notifyConnectionState(server.getId(), PTTState.CONNECTED);
+        bitrateControllers.put(server.getId(), new BitrateController(server.getName()));
+        
+        MurmurConnection connection = new MurmurConnection(server, controlTransport,
+                tlsSessionCache.getSslContext(), new MurmurConnection.ConnectionListener() {
+            @Override
+            public void onConnected() {
+                notifyConnectionState(server.getId(), PTTState.CONNECTED);
+                // Fuera del thread de E/S: abrir el micrófono puede tardar
+                if (!executorService.isShutdown()) {
+                    executorService.execute(PTTService.this::armCapture);
                 }
-                
-                @Override
-                public void onDisconnected(String reason) {
-                    notifyConnectionState(server.getId(), PTTState.DISCONNECTED);
-                    connections.remove(server.getId());
+            }
+            
+            @Override
+            public void onDisconnected(String reason) {
+                notifyConnectionState(server.getId(), PTTState.DISCONNECTED);
+                connections.remove(server.getId());
+                bitrateControllers.remove(server.getId());
+                playbackEngine.removeServer(server.getId());
+                MurmurConnection tx = txConnection;
+                if (tx != null && tx.getServer().getId().equals(server.getId())
+                        && !executorService.isShutdown()) {
+                    executorService.execute(() -> {
+                        // Transmisión PTT sobre la conexión caída: cerrarla
+                        if (isTransmitting && txConnection == tx) {
+                            stopTransmission();
+                        }
+                        disarmCapture();
+                        armCapture();
+                    });
                 }
-                
-                @Override
-                public void onUserJoined(MurmurUser user) {
-                    notifyUserJoined(server.getId(), user);
+            }
+            
+            @Override
+            public void onUserJoined(MurmurUser user) {
+                if (user.isLocallyMuted()) {
+                    // Silencio local conservado de una sesión anterior
+                    playbackEngine.setSpeakerMuted(server.getId(), user.getSessionId(), true);
                 }
-                
-                @Override
-                public void onUserLeft(MurmurUser user) {
-                    notifyUserLeft(server.getId(), user);
+                if (user.isPrioritySpeaker()) {
+                    playbackEngine.setSpeakerPriority(server.getId(), user.getSessionId(), true);
                 }
-                
-                @Override
-                public void onAudioReceived(byte[] audioData, MurmurUser from) {
-                    notifyAudioReceived(server.getId(), audioData, from);
+                notifyUserJoined(server.getId(), user);
+            }
+            
+            @Override
+            public void onUserLeft(MurmurUser user) {
+                // También en cada reconexión: las sesiones se reasignan
+                playbackEngine.removeSpeaker(server.getId(), user.getSessionId());
+                notifyUserLeft(server.getId(), user);
+            }
+            
+            @Override
+            public void onUserChanged(MurmurUser user, int changes) {
+                if ((changes & MurmurUser.CHANGED_PRIORITY_SPEAKER) != 0) {
+                    playbackEngine.setSpeakerPriority(server.getId(), user.getSessionId(),
+                                                      user.isPrioritySpeaker());
                 }
-                
-                @Override
-                public void onError(String error) {
-                    notifyError(server.getId(), error);
+                notifyUserChanged(server.getId(), user, changes);
+            }
+            
+            @Override
+            public void onAudioReceived(MurmurUser from, VoicePacket packet) {
+                playbackEngine.enqueue(server.getId(), from.getSessionId(), packet.getSequence(),
+                                       packet.getBuffer(), packet.getPayloadOffset(),
+                                       packet.getPayloadLength(), packet.isTerminator());
+                notifyAudioReceived(server.getId(), from, packet.isTerminator());
+            }
+            
+            @Override
+            public void onError(String error) {
+                notifyError(server.getId(), error);
+            }
+            
+            @Override
+            public void onNetworkStats(int rttMs, double jitterMs, double lossPercent) {
+                BitrateController controller = bitrateControllers.get(server.getId());
+                if (controller != null) {
+                    controller.onNetworkStats(rttMs, (float) lossPercent);
                 }
-            });
+                playbackEngine.setNetworkJitter(server.getId(), jitterMs);
+            }
             
-            connections.put(server.getId(), connection);
-            connection.connect();
+            @Override
+            public void onReconnecting(String reason, int attempt, long delayMs) {
+                notifyConnectionState(server.getId(), PTTState.CONNECTING);
+                eventDispatcher.post(() -> updateNotification("Reconectando a " + server.getName()));
+            }
+            
+            @Override
+            public void onReconnected(long outageMs) {
+                reconnectStats.record(outageMs);
+                Log.i(TAG, "Servidor " + server.getId() + " restaurado en " + outageMs
+                    + " ms (" + reconnectStats + ")");
+                eventDispatcher.post(() -> updateNotification("Conectado - Listo"));
+            }
         });
+        
+        connections.put(server.getId(), connection);
+        connection.connect();
     }
     
     /**
@@ -232,10 +405,23 @@ public class PTTService extends Service {
      * Iniciar transmisión PTT
      */
     public void startTransmission(String serverId, String channelName) {
+        startTransmission(serverId, channelName, SystemClock.uptimeMillis());
+    }
+    
+    /**
+     * Iniciar transmisión PTT indicando el instante de la pulsación
+     * (SystemClock.uptimeMillis, p. ej. MotionEvent.getEventTime()) para medir
+     * la latencia hasta el primer paquete enviado.
+     */
+    public void startTransmission(String serverId, String channelName, long pressUptimeMs) {
         if (isTransmitting) {
             Log.w(TAG, "Ya se está transmitiendo");
             return;
         }
+        if (voxMode) {
+            Log.w(TAG, "VOX activo, no se inicia PTT");
+            return;
+        }
         
         MurmurConnection conn = connections.get(serverId);
         if (conn == null || !conn.isConnected()) {
@@ -246,21 +432,33 @@ public class PTTService extends Service {
         activeServer = serverId;
         activeChannel = channelName;
         isTransmitting = true;
-        
-        // Adquirir WakeLock
-        wakeLock.acquire(10*60*1000L); // 10 min max
-        
-        // Inicializar AudioRecord si es necesario
-        initAudioRecord();
+        this.pressUptimeMs = pressUptimeMs;
         
         // Unirse al canal si no está en él
         if (!conn.isInChannel(channelName)) {
             conn.joinChannel(channelName);
         }
         
-        // Iniciar captura de audio
-        audioRecord.startRecording();
-        startAudioCaptureLoop(conn);
+        txConnection = conn;
+        if (armed) {
+            // Grabación ya en marcha: la siguiente trama capturada se envía
+            txGate = true;
+        } else {
+            initAudioRecord();
+            if (!captureThread.startCapture(audioRecord)) {
+                // La captura anterior no terminó a tiempo
+                isTransmitting = false;
+                activeServer = null;
+                activeChannel = null;
+                txConnection = null;
+                this.pressUptimeMs = 0;
+                notifyError(serverId, "No se pudo iniciar la captura de audio");
+                return;
+            }
+        }
+        
+        // Adquirir WakeLock
+        wakeLock.acquire(10*60*1000L); // 10 min max
         
         notifyTransmissionStarted(serverId, channelName);
         updateNotification("Transmitiendo en " + channelName);
@@ -274,13 +472,17 @@ public class PTTService extends Service {
     public void stopTransmission() {
         if (!isTransmitting) return;
         
+        String serverId = activeServer;
         isTransmitting = false;
         activeServer = null;
         activeChannel = null;
         
-        // Detener grabación
-        if (audioRecord != null) {
-            audioRecord.stop();
+        if (armed) {
+            // La trama en curso cierra la ráfaga y la grabación sigue armada
+            txGate = false;
+        } else {
+            // Detener grabación: la trama en curso se completa en el thread de captura
+            captureThread.stopCapture();
         }
         
         // Liberar WakeLock
@@ -288,12 +490,142 @@ public class PTTService extends Service {
             wakeLock.release();
         }
         
-        notifyTransmissionEnded(activeServer);
+        notifyTransmissionEnded(serverId);
         updateNotification("Conectado - Listo");
         
         Log.i(TAG, "Transmisión PTT detenida");
     }
     
+    /**
+     * Activar el modo VOX: el micrófono queda abierto y la transmisión se abre y
+     * cierra según el detector de voz, con hangover al final de cada frase.
+     */
+    public void startVoiceActivation(String serverId, String channelName) {
+        if (isTransmitting || voxMode) {
+            Log.w(TAG, "Ya hay una transmisión o VOX activo");
+            return;
+        }
+        
+        MurmurConnection conn = connections.get(serverId);
+        if (conn == null || !conn.isConnected()) {
+            notifyError(serverId, "No conectado al servidor");
+            return;
+        }
+        
+        disarmCapture();
+        activeServer = serverId;
+        activeChannel = channelName;
+        voxMode = true;
+        initAudioRecord();
+        
+        if (!conn.isInChannel(channelName)) {
+            conn.joinChannel(channelName);
+        }
+        
+        txConnection = conn;
+        if (!captureThread.startCapture(audioRecord)) {
+            // La captura anterior no terminó a tiempo
+            voxMode = false;
+            activeServer = null;
+            activeChannel = null;
+            txConnection = null;
+            notifyError(serverId, "No se pudo iniciar la captura de audio");
+            executorService.execute(this::armCapture);
+            return;
+        }
+        
+        // Las operaciones con micrófono abierto son largas: el thread de
+        // captura renueva el plazo mientras VOX siga activo
+        renewVoxWakeLock();
+        
+        updateNotification("VOX activo en " + channelName);
+        Log.i(TAG, "VOX activado en servidor: " + serverId);
+    }
+    
+    /**
+     * Desactivar el modo VOX y cerrar el micrófono
+     */
+    public void stopVoiceActivation() {
+        if (!voxMode) return;
+        
+        voxMode = false;
+        activeServer = null;
+        activeChannel = null;
+        
+        captureThread.stopCapture();
+        
+        synchronized (wakeLock) {
+            if (wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+        }
+        
+        // Volver a armar cuando la captura VOX termine
+        executorService.execute(this::armCapture);
+        
+        updateNotification("Conectado - Listo");
+        Log.i(TAG, "VOX desactivado");
+    }
+    
+    public boolean isVoiceActivationActive() {
+        return voxMode;
+    }
+    
+    /**
+     * Adquirir o ampliar el WakeLock de VOX. No hace nada si VOX ya se desactivó,
+     * para que una renovación tardía no lo deje retenido.
+     */
+    private void renewVoxWakeLock() {
+        synchronized (wakeLock) {
+            if (voxMode) {
+                wakeLock.acquire(VOX_WAKELOCK_TIMEOUT_MS);
+            }
+        }
+    }
+    
+    /**
+     * Detector de voz del modo VOX (umbral y hangover ajustables)
+     */
+    public VoiceActivityDetector getVoiceActivityDetector() {
+        return voiceDetector;
+    }
+    
+    /**
+     * Paquetes de voz enviados y tramas de 20 ms no enviadas por silencio
+     * (DTX o VOX cerrado)
+     */
+    public long getTxPacketsSent() { return txPacketsSent; }
+    public long getTxFramesSuppressed() { return txFramesSuppressed; }
+    
+    /**
+     * Activar o desactivar la ruta pre-armada. Mantiene el micrófono grabando
+     * mientras haya un servidor conectado a cambio de no pagar el arranque de
+     * AudioRecord en cada pulsación. El ajuste se guarda en las preferencias
+     * del servicio.
+     */
+    public void setPreArmEnabled(boolean enabled) {
+        preArmEnabled = enabled;
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        prefs.edit().putBoolean(PREF_PRE_ARM, enabled).apply();
+        if (enabled) {
+            executorService.execute(this::armCapture);
+        } else if (!isTransmitting) {
+            disarmCapture();
+        }
+    }
+    
+    public boolean isPreArmEnabled() { return preArmEnabled; }
+    public boolean isArmed() { return armed; }
+    
+    /**
+     * Latencia desde la pulsación PTT hasta que el primer paquete de voz se
+     * entrega a sendVoicePacket. No incluye el envío posterior: la cola TCP
+     * del canal de control ni el tiempo en la red.
+     */
+    public LatencyStats getPressToSendStats() {
+        return pressToSendStats;
+    }
+    
     /**
      * Verificar si está transmitiendo
      */
@@ -307,6 +639,94 @@ public class PTTService extends Service {
     public String getActiveServer() { return activeServer; }
     public String getActiveChannel() { return activeChannel; }
     
+    /**
+     * Estadísticas de jitter y plazos incumplidos de la captura
+     */
+    public FrameTimingStats getCaptureTimingStats() {
+        return captureThread.getTimingStats();
+    }
+    
+    /**
+     * Buffer de jitter de recepción de un hablante (estadísticas de retardo,
+     * pérdidas y tramas recuperadas con FEC u ocultadas con PLC)
+     */
+    public JitterBuffer getReceiveJitterBuffer(String serverId, int sessionId) {
+        return playbackEngine.getJitterBuffer(serverId, sessionId);
+    }
+    
+    /**
+     * Controlador de tasa y complejidad del codificador para un servidor.
+     * Recibe las medidas de RTT y pérdida mediante onNetworkStats().
+     */
+    public BitrateController getBitrateController(String serverId) {
+        return bitrateControllers.get(serverId);
+    }
+    
+    /**
+     * Canal de control de un servidor: profundidad de la cola de envío y
+     * bytes y mensajes por escritura al socket
+     */
+    public TlsChannel getControlChannel(String serverId) {
+        MurmurConnection conn = connections.get(serverId);
+        return conn != null ? conn.getControlChannel() : null;
+    }
+    
+    /**
+     * RTT y jitter suavizados y pérdidas de subida y bajada de un servidor,
+     * medidos con los pings TCP y UDP
+     */
+    public NetworkStats getNetworkStats(String serverId) {
+        MurmurConnection conn = connections.get(serverId);
+        return conn != null ? conn.getNetworkStats() : null;
+    }
+    
+    /**
+     * Duración de las fases (DNS, TCP, TLS, autenticación, ServerSync) de la
+     * última conexión a un servidor y si reanudó la sesión TLS
+     */
+    public ConnectTiming getConnectTiming(String serverId) {
+        MurmurConnection conn = connections.get(serverId);
+        return conn != null ? conn.getConnectTiming() : null;
+    }
+    
+    /**
+     * Caché de sesiones TLS compartida (sesiones guardadas, si es persistente)
+     */
+    public TlsSessionCache getTlsSessionCache() {
+        return tlsSessionCache;
+    }
+    
+    /**
+     * Etapa de despacho a los PTTListener: profundidad de cola, descartes y
+     * tiempo en cola de los eventos
+     */
+    public EventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+    
+    /**
+     * Tiempo sin audio en cada reconexión automática, desde la pérdida de la
+     * conexión hasta la sesión restaurada
+     */
+    public LatencyStats getReconnectStats() {
+        return reconnectStats;
+    }
+    
+    /**
+     * Ruta de la voz de un servidor (UDP o túnel TCP), cambios y tiempo en cada una
+     */
+    public PathManager getPathManager(String serverId) {
+        MurmurConnection conn = connections.get(serverId);
+        return conn != null ? conn.getPathManager() : null;
+    }
+    
+    /**
+     * Límite de memoria nativa para los decodificadores por hablante
+     */
+    public void setMaxDecoderMemory(long bytes) {
+        playbackEngine.getDecoderPool().setMaxNativeBytes(bytes);
+    }
+    
     // ==================== GESTIÓN DE USUARIOS ====================
     
     /**
@@ -320,6 +740,25 @@ public class PTTService extends Service {
         return new CopyOnWriteArrayList<>();
     }
     
+    /**
+     * Usuarios de un canal y de todos sus subcanales (vistas de subred)
+     */
+    public List<MurmurUser> getUsersUnderChannel(String serverId, String channelName) {
+        MurmurConnection conn = connections.get(serverId);
+        if (conn != null) {
+            return conn.getUsersUnderChannel(channelName);
+        }
+        return new CopyOnWriteArrayList<>();
+    }
+    
+    /**
+     * Número de usuarios en un canal
+     */
+    public int getUserCount(String serverId, String channelName) {
+        MurmurConnection conn = connections.get(serverId);
+        return conn != null ? conn.getUserCount(channelName) : 0;
+    }
+    
     /**
      * Obtener todos los usuarios de un servidor
      */
@@ -369,11 +808,68 @@ public class PTTService extends Service {
         if (conn != null) {
             conn.setLocalMute(userId, muted);
         }
+        playbackEngine.setSpeakerMuted(serverId, userId, muted);
+    }
+    
+    /**
+     * Escuchar o no la voz de un servidor (auto-sordera en Mumble). Se
+     * mantiene en las reconexiones.
+     */
+    public void setListening(String serverId, boolean listening) {
+        MurmurConnection conn = connections.get(serverId);
+        if (conn != null) {
+            conn.setSelfDeaf(!listening);
+        }
+    }
+    
+    /**
+     * Ajustar el volumen de reproducción de un usuario (1.0 = sin cambio)
+     */
+    public void setUserGain(String serverId, int userId, float gain) {
+        playbackEngine.setSpeakerGain(serverId, userId, gain);
     }
     
     // ==================== MÉTODOS PRIVADOS ====================
     
-    private void initAudioRecord() {
+    /**
+     * Armar la ruta de audio sobre la conexión de transmisión o, si no está
+     * conectada, sobre cualquier servidor conectado
+     */
+    private synchronized void armCapture() {
+        if (!preArmEnabled || armed || isTransmitting || voxMode) return;
+        
+        MurmurConnection conn = txConnection;
+        if (conn == null || !conn.isConnected() || !connections.containsKey(conn.getServer().getId())) {
+            conn = null;
+            for (MurmurConnection candidate : connections.values()) {
+                if (candidate.isConnected()) {
+                    conn = candidate;
+                    break;
+                }
+            }
+        }
+        if (conn == null) return;
+        
+        initAudioRecord();
+        txConnection = conn;
+        txGate = false;
+        armed = true;
+        if (!captureThread.startCapture(audioRecord)) {
+            armed = false;
+            return;
+        }
+        Log.i(TAG, "Ruta de audio pre-armada en servidor: " + conn.getServer().getId());
+    }
+    
+    private synchronized void disarmCapture() {
+        if (!armed) return;
+        armed = false;
+        txGate = false;
+        captureThread.stopCapture();
+        Log.i(TAG, "Ruta de audio desarmada");
+    }
+    
+    private synchronized void initAudioRecord() {
         if (audioRecord != null) return;
         
         int minBuffer = AudioRecord.getMinBufferSize(SAMPLE_RATE, CHANNEL_CONFIG, AUDIO_FORMAT);
@@ -388,32 +884,237 @@ public class PTTService extends Service {
         );
     }
     
-    private void startAudioCaptureLoop(MurmurConnection connection) {
-        audioCaptureRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (!isTransmitting) return;
-                
-                short[] buffer = new short[FRAME_SIZE];
-                int read = audioRecord.read(buffer, 0, FRAME_SIZE);
-                
-                if (read > 0) {
-                    // Codificar a Opus
-                    byte[] opusData = opusCodec.encode(buffer, FRAME_SIZE);
-                    
-                    // Enviar al servidor
-                    if (opusData != null && opusData.length > 0) {
-                        connection.sendAudioPacket(opusData, activeChannel);
+    /**
+     * Codificación y envío en el thread de captura. Agrupa framesPerPacket
+     * tramas de 20 ms en una sola trama Opus por paquete, y usa el valor de
+     * congestión del servidor mientras el envío esté congestionado. El número
+     * de tramas solo cambia entre paquetes.
+     *
+     * En modo VOX cada trama pasa por el detector de voz: al detectar voz se
+     * envían antes las últimas tramas previas (pre-roll) y al terminar el
+     * hangover se cierra la ráfaga con un terminador. Con DTX el primer paquete
+     * de silencio se envía como terminador, de modo que el receptor termina la
+     * ráfaga en lugar de ocultar la pausa con PLC; los siguientes no se envían
+     * y solo avanzan la secuencia hasta que vuelve la voz en una ráfaga nueva.
+     */
+    private final AudioCaptureThread.FrameHandler captureHandler = new AudioCaptureThread.FrameHandler() {
+        private final short[] aggregatePcm = new short[FRAME_SIZE * MurmurServer.MAX_FRAMES_PER_PACKET];
+        private final byte[] txPacket = new byte[MurmurConnection.VOICE_HEADROOM + MurmurConnection.MAX_VOICE_PAYLOAD];
+        private final short[][] preRoll = new short[VOX_PRE_ROLL_FRAMES][FRAME_SIZE];
+        private int preRollCount = 0;
+        private int preRollNext = 0;
+        private int aggregatedFrames = 0;
+        private int framesPerPacket = 1;
+        // Se han enviado paquetes desde el último terminador
+        private boolean burstOpen = false;
+        private boolean voxOpen = false;
+        private boolean voxCapture = false;
+        private boolean armedCapture = false;
+        private boolean captureStarted = false;
+        private boolean encoderWarm = false;
+        private long wakeLockRenewedMs = 0;
+        private BitrateController appliedController;
+        
+        @Override
+        public void onFrameCaptured(AudioFramePool.Frame frame) {
+            MurmurConnection connection = txConnection;
+            if (connection == null) return;
+            
+            // La trama en curso al detener la transmisión lleva el terminador
+            boolean terminator = captureThread.getCaptureState() != AudioCaptureThread.CaptureState.RUNNING;
+            
+            if (!captureStarted) {
+                captureStarted = true;
+                voxCapture = voxMode;
+                armedCapture = armed;
+                wakeLockRenewedMs = SystemClock.uptimeMillis();
+            }
+            
+            if (voxCapture && SystemClock.uptimeMillis() - wakeLockRenewedMs >= VOX_WAKELOCK_RENEW_MS) {
+                wakeLockRenewedMs = SystemClock.uptimeMillis();
+                renewVoxWakeLock();
+            }
+            
+            if (armedCapture) {
+                if (!txGate || terminator) {
+                    // Compuerta cerrada: la trama en curso al soltar cierra la ráfaga
+                    if (burstOpen || aggregatedFrames > 0) {
+                        addFrame(connection, frame.pcm, true);
+                    } else if (!encoderWarm) {
+                        warmEncoder();
+                    }
+                    return;
+                }
+            } else if (voxCapture && terminator) {
+                // Parada de VOX: solo se cierra la ráfaga si estaba abierta
+                if (!voxOpen) return;
+            } else if (voxCapture) {
+                boolean voice = voiceDetector.process(frame.pcm, FRAME_SIZE);
+                if (!voice) {
+                    if (voxOpen) {
+                        closeBurst(connection);
+                        setVoxOpen(connection, false);
                     }
+                    storePreRoll(frame.pcm);
+                    return;
+                }
+                if (!voxOpen) {
+                    setVoxOpen(connection, true);
+                    sendPreRoll(connection);
                 }
-                
-                // Continuar loop
-                audioHandler.post(this);
             }
-        };
+            
+            addFrame(connection, frame.pcm, terminator);
+        }
         
-        audioHandler.post(audioCaptureRunnable);
-    }
+        @Override
+        public void onCaptureStopped() {
+            MurmurConnection connection = txConnection;
+            if (connection != null) {
+                closeBurst(connection);
+                if (voxOpen) {
+                    setVoxOpen(connection, false);
+                }
+            }
+            aggregatedFrames = 0;
+            preRollCount = 0;
+            captureStarted = false;
+            encoderWarm = false;
+            voiceDetector.reset();
+            Log.d(TAG, "Captura finalizada: " + captureThread.getTimingStats());
+        }
+        
+        private void addFrame(MurmurConnection connection, short[] pcm, boolean terminator) {
+            if (aggregatedFrames == 0) {
+                updateFramesPerPacket(connection);
+                updateEncoder(connection);
+            }
+            System.arraycopy(pcm, 0, aggregatePcm, aggregatedFrames * FRAME_SIZE, FRAME_SIZE);
+            aggregatedFrames++;
+            
+            if (terminator || aggregatedFrames >= framesPerPacket) {
+                sendAggregated(connection, terminator);
+            }
+        }
+        
+        /**
+         * Terminar la ráfaga en curso: paquete pendiente con terminador o
+         * terminador vacío si el último paquete ya se envió
+         */
+        private void closeBurst(MurmurConnection connection) {
+            if (aggregatedFrames > 0) {
+                sendAggregated(connection, true);
+            } else if (burstOpen) {
+                connection.sendVoicePacket(txPacket, MurmurConnection.VOICE_HEADROOM, 0, 0, true);
+                burstOpen = false;
+            }
+        }
+        
+        private void sendAggregated(MurmurConnection connection, boolean terminator) {
+            // Codificar a Opus dejando espacio para la cabecera de voz
+            int payloadOffset = MurmurConnection.VOICE_HEADROOM;
+            int durationMs = aggregatedFrames * FRAME_MS;
+            long encodeStart = System.nanoTime();
+            int length = opusCodec.encode(aggregatePcm, aggregatedFrames * FRAME_SIZE, txPacket, payloadOffset);
+            if (appliedController != null) {
+                appliedController.onEncodeTime(System.nanoTime() - encodeStart,
+                                               aggregatedFrames * FRAME_PERIOD_NANOS);
+            }
+            aggregatedFrames = 0;
+            
+            if (length <= 0) return;
+            boolean dtx = length <= OpusCodec.DTX_MAX_BYTES;
+            if (dtx && !burstOpen) {
+                // Pausa DTX ya cerrada: no se envía, la secuencia sigue el tiempo
+                connection.skipVoicePacket(durationMs);
+                txFramesSuppressed += durationMs / FRAME_MS;
+                return;
+            }
+            
+            // El primer paquete DTX de la pausa cierra la ráfaga
+            boolean last = terminator || dtx;
+            connection.sendVoicePacket(txPacket, payloadOffset, length, durationMs, last);
+            burstOpen = !last;
+            txPacketsSent++;
+            recordPressToSend();
+        }
+        
+        /**
+         * Codificar una trama de silencio descartada para que la primera trama
+         * real no pague la inicialización del codificador
+         */
+        private void warmEncoder() {
+            Arrays.fill(aggregatePcm, 0, FRAME_SIZE, (short) 0);
+            opusCodec.encode(aggregatePcm, FRAME_SIZE, txPacket, MurmurConnection.VOICE_HEADROOM);
+            encoderWarm = true;
+        }
+        
+        private void recordPressToSend() {
+            long press = pressUptimeMs;
+            if (press == 0) return;
+            pressUptimeMs = 0;
+            
+            long latency = SystemClock.uptimeMillis() - press;
+            pressToSendStats.record(latency);
+            Log.d(TAG, "Pulsación -> entrega del primer paquete: " + latency + " ms (armado=" + armedCapture + ")");
+        }
+        
+        private void storePreRoll(short[] pcm) {
+            System.arraycopy(pcm, 0, preRoll[preRollNext], 0, FRAME_SIZE);
+            preRollNext = (preRollNext + 1) % VOX_PRE_ROLL_FRAMES;
+            preRollCount = Math.min(preRollCount + 1, VOX_PRE_ROLL_FRAMES);
+            txFramesSuppressed++;
+        }
+        
+        private void sendPreRoll(MurmurConnection connection) {
+            int index = (preRollNext - preRollCount + VOX_PRE_ROLL_FRAMES) % VOX_PRE_ROLL_FRAMES;
+            for (int i = 0; i < preRollCount; i++) {
+                addFrame(connection, preRoll[index], false);
+                index = (index + 1) % VOX_PRE_ROLL_FRAMES;
+            }
+            preRollCount = 0;
+        }
+        
+        private void setVoxOpen(MurmurConnection connection, boolean open) {
+            voxOpen = open;
+            String serverId = connection.getServer().getId();
+            String channel = activeChannel;
+            // Solo encola: los listeners no se ejecutan en el thread de captura
+            if (open) {
+                notifyTransmissionStarted(serverId, channel);
+            } else {
+                notifyTransmissionEnded(serverId);
+            }
+        }
+        
+        private void updateFramesPerPacket(MurmurConnection connection) {
+            MurmurServer server = connection.getServer();
+            int frames = server.getFramesPerPacket();
+            if (connection.isVoiceCongested()) {
+                frames = Math.max(frames, server.getCongestedFramesPerPacket());
+            }
+            frames = Math.max(1, Math.min(MurmurServer.MAX_FRAMES_PER_PACKET, frames));
+            if (frames != framesPerPacket) {
+                Log.i(TAG, "Tramas por paquete: " + framesPerPacket + " -> " + frames);
+                framesPerPacket = frames;
+            }
+        }
+        
+        /**
+         * Bucle de política del controlador de la conexión, evaluado entre paquetes
+         */
+        private void updateEncoder(MurmurConnection connection) {
+            BitrateController controller = bitrateControllers.get(connection.getServer().getId());
+            if (controller == null) return;
+            
+            controller.setMaxBandwidth(connection.getMaxBandwidth());
+            controller.setCongested(connection.isVoiceCongested());
+            controller.evaluate(SystemClock.elapsedRealtime(), framesPerPacket);
+            // Al cambiar de conexión se aplica su configuración completa
+            controller.applyTo(opusCodec, controller != appliedController);
+            appliedController = controller;
+        }
+    };
     
     // ==================== NOTIFICACIONES ====================
     
@@ -469,44 +1170,77 @@ public class PTTService extends Service {
     }
     
     private void notifyConnectionState(String serverId, PTTState state) {
-        for (PTTListener l : listeners) {
-            l.onConnectionStateChanged(serverId, state);
-        }
+        eventDispatcher.post(() -> {
+            for (PTTListener l : listeners) {
+                l.onConnectionStateChanged(serverId, state);
+            }
+        });
     }
     
-    private void notifyUserJoined(String serverId, MurmurUser user) {
-        for (PTTListener l : listeners) {
-            l.onUserJoined(serverId, user);
-        }
+    // Los avisos de usuario llevan una copia: el usuario vivo puede cambiar
+    // en el thread de red antes del despacho
+    private void notifyUserJoined(String serverId, MurmurUser live) {
+        MurmurUser user = new MurmurUser(live);
+        eventDispatcher.post(() -> {
+            for (PTTListener l : listeners) {
+                l.onUserJoined(serverId, user);
+            }
+        });
     }
     
-    private void notifyUserLeft(String serverId, MurmurUser user) {
-        for (PTTListener l : listeners) {
-            l.onUserLeft(serverId, user);
-        }
+    private void notifyUserLeft(String serverId, MurmurUser live) {
+        MurmurUser user = new MurmurUser(live);
+        eventDispatcher.post(() -> {
+            for (PTTListener l : listeners) {
+                l.onUserLeft(serverId, user);
+            }
+        });
     }
     
-    private void notifyAudioReceived(String serverId, byte[] audioData, MurmurUser from) {
-        for (PTTListener l : listeners) {
-            l.onAudioReceived(serverId, audioData, from);
+    private void notifyUserChanged(String serverId, MurmurUser live, int changes) {
+        MurmurUser user = new MurmurUser(live);
+        eventDispatcher.post(() -> {
+            for (PTTListener l : listeners) {
+                l.onUserChanged(serverId, user, changes);
+            }
+        });
+    }
+    
+    private void notifyAudioReceived(String serverId, MurmurUser from, boolean terminator) {
+        Runnable event = () -> {
+            for (PTTListener l : listeners) {
+                l.onAudioReceived(serverId, from, terminator);
+            }
+        };
+        // La actividad de voz es frecuente y se puede perder; el fin de transmisión no
+        if (terminator) {
+            eventDispatcher.post(event);
+        } else {
+            eventDispatcher.postDroppable(event);
         }
     }
     
     private void notifyTransmissionStarted(String serverId, String channel) {
-        for (PTTListener l : listeners) {
-            l.onTransmissionStarted(serverId, channel);
-        }
+        eventDispatcher.post(() -> {
+            for (PTTListener l : listeners) {
+                l.onTransmissionStarted(serverId, channel);
+            }
+        });
     }
     
     private void notifyTransmissionEnded(String serverId) {
-        for (PTTListener l : listeners) {
-            l.onTransmissionEnded(serverId);
-        }
+        eventDispatcher.post(() -> {
+            for (PTTListener l : listeners) {
+                l.onTransmissionEnded(serverId);
+            }
+        });
     }
     
     private void notifyError(String serverId, String error) {
-        for (PTTListener l : listeners) {
-            l.onError(serverId, error);
-        }
+        eventDispatcher.post(() -> {
+            for (PTTListener l : listeners) {
+                l.onError(serverId, error);
+            }
+        });
     }
 }
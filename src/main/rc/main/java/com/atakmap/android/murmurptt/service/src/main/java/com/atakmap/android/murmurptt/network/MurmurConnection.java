@@ -1,25 +1,27 @@
 package com.atakmap.android.murmurptt.network;
 
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.atakmap.android.murmurptt.model.MurmurServer;
 import com.atakmap.android.murmurptt.model.MurmurUser;
+import com.google.protobuf.ByteString;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.net.Socket;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
@@ -29,85 +31,292 @@ import javax.net.ssl.TrustManagerFactory;
 public class MurmurConnection {
     
     private static final String TAG = "MurmurConnection";
+    public static final int MAX_VOICE_PAYLOAD = 1024;
+    private static final int VOICE_SEQ_UNIT_MS = 10;
+    private static final int DEFAULT_FRAME_MS = 20;
+    // Bytes pendientes en el canal de control a partir de los cuales la voz por
+    // TCP se considera congestionada, y por debajo de los cuales deja de estarlo
+    private static final int CONGESTED_QUEUE_BYTES = 8 * 1024;
+    private static final int UNCONGESTED_QUEUE_BYTES = 2 * 1024;
+    // Pérdida de subida y retardo de cola (RTT sobre la línea base) medidos con
+    // los pings a partir de los cuales la ruta se considera congestionada
+    private static final double CONGESTED_LOSS_PERCENT = 5;
+    private static final double UNCONGESTED_LOSS_PERCENT = 2;
+    private static final double CONGESTED_DELAY_MS = 200;
+    private static final double UNCONGESTED_DELAY_MS = 80;
+    // Ping TCP: keepalive del canal de control y medida de RTT y pérdidas
+    private static final long TCP_PING_INTERVAL_MS = 5000;
+    // Sin respuesta al ping TCP durante este tiempo la conexión se da por muerta
+    private static final long TCP_PING_TIMEOUT_MS = 20000;
+    // Reconexión: espera exponencial con jitter entre intentos
+    private static final long RECONNECT_INITIAL_MS = 250;
+    private static final long RECONNECT_MAX_MS = 30000;
+    
+    /**
+     * Espacio libre que sendVoicePacket necesita antes del payload para la cabecera
+     */
+    public static final int VOICE_HEADROOM = VoicePacket.MAX_HEADER_SIZE;
     
     private MurmurServer server;
     private ConnectionListener listener;
-    private ExecutorService executor;
+    private final ControlTransport transport;
     
-    private Socket tcpSocket;
-    private DataInputStream input;
-    private DataOutputStream output;
+    private volatile TlsChannel controlChannel;
     private volatile boolean connected = false;
     private volatile boolean running = false;
+    // Contexto compartido: su caché reanuda la sesión TLS al reconectar (handshake abreviado)
+    private final SSLContext sslContext;
+    
+    // Fases de la conexión en curso y de la última completada
+    private volatile long authAcceptedMs = 0;
+    private volatile ConnectTiming connectTiming;
+    
+    // Reconexión (thread de E/S)
+    private final Random random = new Random();
+    private volatile ControlTransport.ScheduledTask reconnectTask;
+    private int reconnectAttempts = 0;
+    private volatile long lostAtMs = 0;
+    
+    // Estado local que se restaura al reconectar
+    private volatile String lastChannelPath;
+    private volatile boolean selfMute = false;
+    private volatile boolean selfDeaf = false;
+    private volatile boolean muteBeforeDeaf = false;
+    private final Set<String> locallyMutedNames = Collections.newSetFromMap(new ConcurrentHashMap<>());
     
     private int sessionId = -1;
     private ConcurrentHashMap<Integer, MurmurUser> users;
-    private ConcurrentHashMap<Integer, Channel> channels;
+    
+    // Vista inmutable publicada tras cada lote de cambios; el resto solo en el thread de E/S
+    private volatile ServerSnapshot snapshot = ServerSnapshot.EMPTY;
+    private final HashSet<Integer> dirtyUsers = new HashSet<>();
+    private boolean usersDirty = false;
+    private boolean channelsDirty = false;
+    private final ChannelTree channels = new ChannelTree();
     private int currentChannelId = -1;
     private int permissions = 0;
+    private volatile int maxBandwidth = 0;
     
     private CryptState cryptState;
-    private UDPTunnel udpTunnel;
+    private volatile UDPTunnel udpTunnel;
+    private final PathManager pathManager;
+    private ControlTransport.ScheduledTask udpPingTask;
+    // Ping UDP (solo thread de E/S)
+    private final byte[] udpPingBuffer = new byte[VoicePacket.MAX_PING_SIZE];
+    private ControlTransport.ScheduledTask tcpPingTask;
+    private volatile long lastTcpPongMs = 0;
+    private volatile long tcpPacketsReceived = 0;
+    private final NetworkStats networkStats = new NetworkStats();
+    
+    // Voz: secuencia de transmisión y lectores reutilizables por ruta
+    private final Object voiceLock = new Object();
+    private final byte[] voiceScratch = new byte[VOICE_HEADROOM + MAX_VOICE_PAYLOAD];
+    private long voiceSequence = 0;
+    private final VoicePacket tcpVoicePacket = new VoicePacket();
+    private final VoicePacket udpVoicePacket = new VoicePacket();
+    
+    // Congestión del envío de voz: cola del canal de control (voz por TCP) y
+    // pérdida o retardo de cola de la ruta medidos con los pings
+    private volatile boolean queueCongested = false;
+    private volatile boolean pathCongested = false;
     
+    /**
+     * Eventos de la conexión. Todos se llaman desde el thread de E/S, que
+     * comparten los canales de control y la voz de todos los servidores: las
+     * implementaciones deben volver enseguida, sin bloquear ni esperar
+     * cerrojos retenidos durante operaciones largas. El trabajo lento (abrir
+     * el micrófono, actualizar la UI) se pasa a otro thread.
+     */
     public interface ConnectionListener {
         void onConnected();
         void onDisconnected(String reason);
         void onUserJoined(MurmurUser user);
         void onUserLeft(MurmurUser user);
-        void onAudioReceived(byte[] audioData, MurmurUser from);
+        /**
+         * Un UserState cambió campos de un usuario ya conocido; changes es
+         * una máscara de MurmurUser.CHANGED_*
+         */
+        void onUserChanged(MurmurUser user, int changes);
+        /**
+         * Paquete de voz recibido. La vista del paquete solo es válida durante la llamada.
+         */
+        void onAudioReceived(MurmurUser from, VoicePacket packet);
         void onError(String error);
+        /**
+         * Nuevas medidas de la ruta de voz actual tras cada respuesta al ping
+         * TCP (thread de E/S): RTT suavizado, jitter estimado de un sentido
+         * (0 mientras no hay pings suficientes) y pérdida de subida.
+         */
+        void onNetworkStats(int rttMs, double jitterMs, double lossPercent);
+        /**
+         * Conexión perdida; se reintentará en delayMs
+         */
+        void onReconnecting(String reason, int attempt, long delayMs);
+        /**
+         * Sesión restaurada tras una pérdida (canal, silencios y escucha
+         * reenviados); outageMs es el tiempo sin audio desde la pérdida
+         */
+        void onReconnected(long outageMs);
     }
     
-    public MurmurConnection(MurmurServer server, ConnectionListener listener) {
+    public MurmurConnection(MurmurServer server, ControlTransport transport, SSLContext sslContext,
+                            ConnectionListener listener) {
         this.server = server;
         this.listener = listener;
-        this.executor = Executors.newSingleThreadExecutor();
+        this.transport = transport;
+        this.sslContext = sslContext;
         this.users = new ConcurrentHashMap<>();
-        this.channels = new ConcurrentHashMap<>();
         this.cryptState = new CryptState();
+        this.pathManager = new PathManager(server.getName(), SystemClock.elapsedRealtime());
     }
     
     /**
-     * Conectar al servidor
+     * Conectar al servidor. Vuelve inmediatamente: la conexión, el handshake
+     * TLS y la recepción se hacen en el thread de E/S del transporte.
      */
     public void connect() {
-        executor.execute(() -> {
+        Log.i(TAG, "Conectando a " + server.getHost() + ":" + server.getPort());
+        try {
+            running = true;
+            openControlChannel();
+        } catch (Exception e) {
+            Log.e(TAG, "Error de conexión", e);
+            listener.onError("Error de conexión: " + e.getMessage());
+        }
+    }
+    
+    private void openControlChannel() throws IOException {
+        authAcceptedMs = 0;
+        controlChannel = transport.open(server.getHost(), server.getPort(), sslContext,
+                                        server.getMaxMessageSize(), controlHandler);
+    }
+    
+    /**
+     * Contexto TLS de cliente. Se crea uno para todas las conexiones, de modo
+     * que compartan su caché de sesiones (ver TlsSessionCache).
+     */
+    public static SSLContext createSSLContext() throws Exception {
+        // Para desarrollo, aceptar certificados autofirmados
+        // En producción, usar keystore apropiado
+        TrustManager[] trustAllCerts = new TrustManager[]{
+            new javax.net.ssl.X509TrustManager() {
+                public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+                    return null;
+                }
+                public void checkClientTrusted(
+                    java.security.cert.X509Certificate[] certs, String authType) {
+                }
+                public void checkServerTrusted(
+                    java.security.cert.X509Certificate[] certs, String authType) {
+                }
+            }
+        };
+        
+        SSLContext sc = SSLContext.getInstance("TLS");
+        sc.init(null, trustAllCerts, new java.security.SecureRandom());
+        return sc;
+    }
+    
+    /**
+     * Eventos del canal de control, en el thread de E/S
+     */
+    private final ControlTransport.Handler controlHandler = new ControlTransport.Handler() {
+        @Override
+        public void onEstablished(TlsChannel channel) {
             try {
-                Log.i(TAG, "Conectando a " + server.getHost() + ":" + server.getPort());
-                
-                // Crear socket SSL/TLS
-                SSLContext sslContext = createSSLContext();
-                tcpSocket = sslContext.getSocketFactory().createSocket(server.getHost(), server.getPort());
-                
-                input = new DataInputStream(tcpSocket.getInputStream());
-                output = new DataOutputStream(tcpSocket.getOutputStream());
-                
-                running = true;
-                
                 // Enviar versión
                 sendVersion();
                 
                 // Autenticar
                 authenticate();
                 
-                // Iniciar thread de recepción
-                startReceiveLoop();
-                
                 // Iniciar UDP tunnel si es necesario
                 if (server.isUseUDP()) {
-                    udpTunnel = new UDPTunnel(server, cryptState, this::handleAudioPacket);
-                    udpTunnel.start();
+                    UDPTunnel tunnel = new UDPTunnel(transport, channel.getRemoteAddress(),
+                                                     cryptState, udpListener);
+                    tunnel.start();
+                    udpTunnel = tunnel;
+                    udpPingTask = transport.schedule(MurmurConnection.this::sendUdpPing,
+                        PathManager.PING_INTERVAL_MS, PathManager.PING_INTERVAL_MS);
                 }
                 
+                // Keepalive: evita que los equipos intermedios corten el TLS inactivo
+                lastTcpPongMs = SystemClock.elapsedRealtime();
+                tcpPingTask = transport.schedule(MurmurConnection.this::sendTcpPing,
+                    TCP_PING_INTERVAL_MS, TCP_PING_INTERVAL_MS);
+                
                 connected = true;
                 listener.onConnected();
                 
             } catch (Exception e) {
                 Log.e(TAG, "Error de conexión", e);
-                listener.onError("Error de conexión: " + e.getMessage());
+                if (lostAtMs > 0) {
+                    connectionLost("Error de conexión: " + e.getMessage());
+                } else {
+                    listener.onError("Error de conexión: " + e.getMessage());
+                    disconnect();
+                }
             }
-        });
-    }
+        }
+        
+        @Override
+        public void onMessage(TlsChannel channel, int type, byte[] buffer, int offset, int length) {
+            if (!running) return;
+            if (authAcceptedMs == 0 && type != MumbleProtocol.MessageType.VERSION
+                    && type != MumbleProtocol.MessageType.PING) {
+                // Primer mensaje tras aceptar la autenticación (CryptSetup o estado)
+                authAcceptedMs = SystemClock.elapsedRealtime();
+            }
+            try {
+                processPacket(type, buffer, offset, length);
+            } catch (Exception e) {
+                Log.e(TAG, "Error procesando mensaje " + type, e);
+                connectionLost("Error de red: " + e.getMessage());
+            }
+        }
+        
+        @Override
+        public void onMessagesProcessed(TlsChannel channel) {
+            publishSnapshot();
+        }
+        
+        @Override
+        public void onClosed(TlsChannel channel, Exception cause) {
+            if (running && channel == controlChannel) {
+                Log.e(TAG, "Canal de control cerrado", cause);
+                String reason = cause != null ? cause.getMessage() : "conexión cerrada";
+                if (connected || lostAtMs > 0) {
+                    connectionLost("Error de red: " + reason);
+                } else {
+                    // Primera conexión fallida: no se reintenta
+                    listener.onError("Error de conexión: " + reason);
+                    disconnect();
+                }
+            }
+        }
+    };
+    
+    /**
+     * Eventos del canal UDP de voz, en el thread de E/S
+     */
+    private final UDPTunnel.Listener udpListener = new UDPTunnel.Listener() {
+        @Override
+        public void onUdpPacket(byte[] data, int length) {
+            handleUdpAudio(data, length);
+        }
+        
+        @Override
+        public void onCryptResyncNeeded() {
+            // Un CryptSetup vacío pide al servidor su nonce de cifrado actual
+            Log.w(TAG, "UDP sin descifrar paquetes, pidiendo resincronización: " + cryptState);
+            try {
+                sendPacket(MumbleProtocol.MessageType.CRYPT_SETUP,
+                           MumbleProtocol.CryptSetup.newBuilder().build().toByteArray());
+            } catch (Exception e) {
+                Log.e(TAG, "Error pidiendo resincronización", e);
+            }
+        }
+    };
     
     /**
      * Desconectar
@@ -116,34 +325,193 @@ public class MurmurConnection {
         running = false;
         connected = false;
         
+        ControlTransport.ScheduledTask task = reconnectTask;
+        if (task != null) {
+            task.cancel();
+        }
+        closeTransport(controlChannel);
+        
+        listener.onDisconnected("Desconexión manual");
+    }
+    
+    /**
+     * Cerrar el canal de control, el canal UDP y los pings
+     */
+    private void closeTransport(TlsChannel channel) {
         try {
-            if (udpTunnel != null) {
-                udpTunnel.stop();
+            if (udpPingTask != null) {
+                udpPingTask.cancel();
+            }
+            if (tcpPingTask != null) {
+                tcpPingTask.cancel();
             }
-            if (tcpSocket != null && !tcpSocket.isClosed()) {
-                tcpSocket.close();
+            UDPTunnel tunnel = udpTunnel;
+            udpTunnel = null;
+            if (tunnel != null) {
+                tunnel.stop();
+            }
+            if (channel != null) {
+                channel.close();
             }
         } catch (Exception e) {
             Log.e(TAG, "Error al desconectar", e);
         }
+    }
+    
+    // ==================== RECONEXIÓN (thread de E/S) ====================
+    
+    /**
+     * Conexión perdida con la sesión en marcha: cerrar el transporte, olvidar
+     * el estado de la sesión y programar un nuevo intento
+     */
+    private void connectionLost(String reason) {
+        if (!running) return;
+        connected = false;
+        if (lostAtMs == 0) {
+            lostAtMs = SystemClock.elapsedRealtime();
+            reconnectAttempts = 0;
+        }
         
-        listener.onDisconnected("Desconexión manual");
+        TlsChannel channel = controlChannel;
+        controlChannel = null;
+        closeTransport(channel);
+        pathManager.onUdpUnavailable(SystemClock.elapsedRealtime());
+        
+        // Las sesiones cambian al reconectar: el servidor volverá a enviar la lista
+        sessionId = -1;
+        for (MurmurUser user : users.values()) {
+            listener.onUserLeft(user);
+        }
+        users.clear();
+        channels.clear();
+        usersDirty = true;
+        channelsDirty = true;
+        publishSnapshot();
+        currentChannelId = -1;
+        synchronized (voiceLock) {
+            voiceSequence = 0;
+        }
+        queueCongested = false;
+        pathCongested = false;
+        
+        reconnectAttempts++;
+        long delay = backoffDelay(reconnectAttempts);
+        Log.w(TAG, "Conexión perdida (" + reason + "), reintento " + reconnectAttempts
+            + " en " + delay + " ms");
+        listener.onReconnecting(reason, reconnectAttempts, delay);
+        reconnectTask = transport.schedule(this::reconnect, delay, 0);
+    }
+    
+    /**
+     * Espera exponencial con la mitad aleatoria, para que varios clientes
+     * cortados a la vez no reconecten al unísono
+     */
+    private long backoffDelay(int attempt) {
+        long delay = RECONNECT_INITIAL_MS << Math.min(attempt - 1, 16);
+        delay = Math.min(delay, RECONNECT_MAX_MS);
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+    
+    private void reconnect() {
+        if (!running) return;
+        Log.i(TAG, "Reconectando a " + server.getHost() + ":" + server.getPort()
+            + " (intento " + reconnectAttempts + ")");
+        try {
+            openControlChannel();
+        } catch (Exception e) {
+            connectionLost("Error de conexión: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Tras ServerSync en una reconexión: volver al canal anterior y reenviar
+     * el estado de silencio y escucha propio
+     */
+    private void restoreSession() throws Exception {
+        MurmurUser self = users.get(sessionId);
+        if (self != null) {
+            currentChannelId = self.getChannelId();
+        }
+        String channelPath = lastChannelPath;
+        if (channelPath != null && !isInChannel(channelPath)) {
+            ChannelTree.Node channel = channels.findByPath(channelPath);
+            if (channel != null) {
+                sendUserState(channel.getId());
+            } else {
+                Log.w(TAG, "Canal anterior ya no existe: " + channelPath);
+            }
+        }
+        if (selfMute || selfDeaf) {
+            sendSelfState();
+        }
+        
+        long outage = SystemClock.elapsedRealtime() - lostAtMs;
+        lostAtMs = 0;
+        reconnectAttempts = 0;
+        Log.i(TAG, "Sesión restaurada en " + outage + " ms");
+        listener.onReconnected(outage);
     }
     
     /**
      * Enviar paquete de audio
      */
     public void sendAudioPacket(byte[] opusData, String channelName) {
+        sendAudioPacket(opusData, 0, opusData.length, channelName);
+    }
+    
+    /**
+     * Enviar paquete de audio desde un buffer sin espacio para la cabecera.
+     * Copia el payload a un buffer interno reutilizable.
+     */
+    public void sendAudioPacket(byte[] opusData, int offset, int length, String channelName) {
+        if (length > MAX_VOICE_PAYLOAD) return;
+        synchronized (voiceScratch) {
+            System.arraycopy(opusData, offset, voiceScratch, VOICE_HEADROOM, length);
+            sendVoicePacket(voiceScratch, VOICE_HEADROOM, length, DEFAULT_FRAME_MS, false);
+        }
+    }
+    
+    /**
+     * Enviar un paquete de voz cuyo payload Opus ya está en buf[payloadOffset].
+     * La cabecera (tipo, secuencia, longitud/terminador) se escribe en los
+     * VOICE_HEADROOM bytes anteriores, sin copiar el payload.
+     */
+    public void sendVoicePacket(byte[] buf, int payloadOffset, int payloadLength,
+                                int durationMs, boolean terminator) {
         if (!connected) return;
         
+        int start;
+        synchronized (voiceLock) {
+            start = VoicePacket.writeHeader(buf, payloadOffset, payloadLength,
+                                            VoicePacket.TARGET_NORMAL, voiceSequence, terminator);
+            voiceSequence += durationMs / VOICE_SEQ_UNIT_MS;
+        }
+        sendVoiceData(buf, start, payloadOffset + payloadLength - start);
+    }
+    
+    /**
+     * Avanzar la secuencia de voz sin enviar (silencio DTX tras el terminador
+     * de la ráfaga), para que la secuencia siga el tiempo de captura.
+     */
+    public void skipVoicePacket(int durationMs) {
+        synchronized (voiceLock) {
+            voiceSequence += durationMs / VOICE_SEQ_UNIT_MS;
+        }
+    }
+    
+    private void sendVoiceData(byte[] data, int offset, int length) {
         try {
             // Encapsular en tunnel UDP o TCP
-            if (udpTunnel != null && udpTunnel.isConnected()) {
-                byte[] encrypted = cryptState.encrypt(opusData);
-                udpTunnel.send(encrypted);
+            UDPTunnel tunnel = udpTunnel;
+            if (tunnel != null && tunnel.isConnected() && pathManager.isUdp()) {
+                tunnel.send(data, offset, length);
             } else {
                 // Fallback a TCP tunnel
-                sendUDPTunnelPacket(opusData);
+                sendUDPTunnelPacket(data, offset, length);
+                TlsChannel channel = controlChannel;
+                if (channel != null) {
+                    updateQueueCongestion(channel.getQueuedBytes());
+                }
             }
         } catch (Exception e) {
             Log.e(TAG, "Error enviando audio", e);
@@ -151,21 +519,101 @@ public class MurmurConnection {
     }
     
     /**
-     * Unirse a un canal
+     * Voz por TCP: los bytes que el socket no acepta se acumulan en la cola
+     * del canal de control. Histéresis entre los dos umbrales.
+     */
+    private void updateQueueCongestion(int queuedBytes) {
+        if (!queueCongested && queuedBytes > CONGESTED_QUEUE_BYTES) {
+            queueCongested = true;
+            Log.w(TAG, "Voz por TCP congestionada: " + queuedBytes + " bytes en cola");
+        } else if (queueCongested && queuedBytes < UNCONGESTED_QUEUE_BYTES) {
+            queueCongested = false;
+            Log.i(TAG, "Voz por TCP sin congestión");
+        }
+    }
+    
+    /**
+     * Pérdida de subida (solo UDP) y retardo de cola de la ruta actual tras
+     * cada respuesta al ping TCP. Histéresis entre los dos pares de umbrales.
+     */
+    private void updatePathCongestion(boolean udp) {
+        double loss = udp ? networkStats.getUplinkLossPercent() : 0;
+        double delay = networkStats.getQueuingDelayMs(udp);
+        boolean congested = pathCongested
+            ? loss >= UNCONGESTED_LOSS_PERCENT || delay >= UNCONGESTED_DELAY_MS
+            : loss >= CONGESTED_LOSS_PERCENT || delay >= CONGESTED_DELAY_MS;
+        if (congested != pathCongested) {
+            pathCongested = congested;
+            Log.i(TAG, String.format("Ruta de voz %s: pérdida=%.1f%% retardo de cola=%.0fms",
+                congested ? "congestionada" : "sin congestión", loss, delay));
+        }
+    }
+    
+    /**
+     * Indica si el envío de voz está congestionado: cola del canal de control
+     * creciendo (voz por TCP) o pérdida o retardo de cola altos en la ruta
+     */
+    public boolean isVoiceCongested() {
+        return (queueCongested && !pathManager.isUdp()) || pathCongested;
+    }
+    
+    /**
+     * Unirse a un canal, por nombre o por ruta completa ("Root/Ops/Alpha")
      */
     public void joinChannel(String channelName) {
-        Channel channel = findChannelByName(channelName);
+        ChannelTree.Node channel = channels.find(channelName);
         if (channel != null) {
-            sendUserState(channel.id);
+            lastChannelPath = channel.getPath();
+            sendUserState(channel.getId());
+        }
+    }
+    
+    /**
+     * Auto-silencio (no transmitir) anunciado al servidor; se restaura al reconectar
+     */
+    public void setSelfMute(boolean mute) {
+        selfMute = mute;
+        if (!mute) {
+            // En Mumble quitar el silencio también quita la sordera
+            selfDeaf = false;
         }
+        sendSelfStateSafe();
     }
     
     /**
-     * Verificar si está en un canal
+     * Dejar de escuchar (auto-sordera): el servidor no envía voz. Se
+     * restaura al reconectar.
+     */
+    public void setSelfDeaf(boolean deaf) {
+        if (deaf == selfDeaf) return;
+        // Como en Mumble, la sordera implica silencio; al quitarla vuelve el silencio anterior
+        if (deaf) {
+            muteBeforeDeaf = selfMute;
+            selfMute = true;
+        } else {
+            selfMute = muteBeforeDeaf;
+        }
+        selfDeaf = deaf;
+        sendSelfStateSafe();
+    }
+    
+    public boolean isSelfMute() {
+        return selfMute;
+    }
+    
+    public boolean isSelfDeaf() {
+        return selfDeaf;
+    }
+    
+    /**
+     * Verificar si está en un canal, por nombre o por ruta completa
      */
     public boolean isInChannel(String channelName) {
-        Channel ch = channels.get(currentChannelId);
-        return ch != null && ch.name.equals(channelName);
+        ChannelTree.Node ch = channels.get(currentChannelId);
+        if (ch == null) return false;
+        return channelName.indexOf(ChannelTree.PATH_SEPARATOR) >= 0
+            ? ch.getPath().equals(channelName)
+            : ch.getName().equals(channelName);
     }
     
     /**
@@ -187,60 +635,76 @@ public class MurmurConnection {
     }
     
     public void moveUser(int userId, String channelName) {
-        Channel ch = findChannelByName(channelName);
+        ChannelTree.Node ch = channels.find(channelName);
         if (ch != null) {
-            sendUserState(userId, ch.id);
+            sendUserState(userId, ch.getId());
         }
     }
     
     public void setLocalMute(int userId, boolean muted) {
         MurmurUser user = users.get(userId);
         if (user != null) {
-            user.setLocallyMuted(muted);
+            if (muted) {
+                locallyMutedNames.add(user.getName());
+            } else {
+                locallyMutedNames.remove(user.getName());
+            }
+            // Los usuarios solo se modifican en el thread de E/S
+            transport.execute(() -> {
+                user.setLocallyMuted(muted);
+                markUserDirty(userId);
+                publishSnapshot();
+            });
         }
     }
     
+    /**
+     * Usuarios de un canal en la vista actual (sin copiar; no modificar)
+     */
     public List<MurmurUser> getUsersInChannel(String channelName) {
-        List<MurmurUser> result = new CopyOnWriteArrayList<>();
-        Channel ch = findChannelByName(channelName);
-        if (ch != null) {
-            for (MurmurUser user : users.values()) {
-                if (user.getChannelId() == ch.id) {
-                    result.add(user);
-                }
-            }
+        ChannelTree.Node ch = channels.find(channelName);
+        return ch != null ? snapshot.getUsersInChannel(ch.getId()) : Collections.<MurmurUser>emptyList();
+    }
+    
+    /**
+     * Usuarios de un canal y de todos sus subcanales
+     */
+    public List<MurmurUser> getUsersUnderChannel(String channelName) {
+        ChannelTree.Node ch = channels.find(channelName);
+        if (ch == null) return Collections.emptyList();
+        ServerSnapshot view = snapshot;
+        List<MurmurUser> result = new ArrayList<>();
+        for (int id : channels.getSubtreeIds(ch.getId())) {
+            result.addAll(view.getUsersInChannel(id));
         }
         return result;
     }
     
-    public List<MurmurUser> getAllUsers() {
-        return new CopyOnWriteArrayList<>(users.values());
+    /**
+     * Número de usuarios en un canal (sin subcanales) en la vista actual
+     */
+    public int getUserCount(String channelName) {
+        ChannelTree.Node ch = channels.find(channelName);
+        return ch != null ? snapshot.getUsersInChannel(ch.getId()).size() : 0;
     }
     
-    // ==================== MÉTODOS PRIVADOS ====================
+    /**
+     * Usuarios en la vista actual (sin copiar; no modificar)
+     */
+    public List<MurmurUser> getAllUsers() {
+        return snapshot.getUsers();
+    }
     
-    private SSLContext createSSLContext() throws Exception {
-        // Para desarrollo, aceptar certificados autofirmados
-        // En producción, usar keystore apropiado
-        TrustManager[] trustAllCerts = new TrustManager[]{
-            new javax.net.ssl.X509TrustManager() {
-                public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-                    return null;
-                }
-                public void checkClientTrusted(
-                    java.security.cert.X509Certificate[] certs, String authType) {
-                }
-                public void checkServerTrusted(
-                    java.security.cert.X509Certificate[] certs, String authType) {
-                }
-            }
-        };
-        
-        SSLContext sc = SSLContext.getInstance("TLS");
-        sc.init(null, trustAllCerts, new java.security.SecureRandom());
-        return sc;
+    /**
+     * Vista inmutable de usuarios y canales. Comparar getVersion() permite
+     * saltarse refrescos cuando nada ha cambiado.
+     */
+    public ServerSnapshot getSnapshot() {
+        return snapshot;
     }
     
+    // ==================== MÉTODOS PRIVADOS ====================
+    
     private void sendVersion() throws Exception {
         MumbleProtocol.Version version = MumbleProtocol.Version.newBuilder()
             .setVersion(0x10205) // 1.2.5
@@ -263,136 +727,335 @@ public class MurmurConnection {
         sendPacket(MumbleProtocol.MessageType.AUTHENTICATE, auth.toByteArray());
     }
     
-    private void startReceiveLoop() {
-        executor.execute(() -> {
-            while (running) {
-                try {
-                    // Leer header (tipo + tamaño)
-                    short type = input.readShort();
-                    int size = input.readInt();
-                    
-                    byte[] data = new byte[size];
-                    input.readFully(data);
-                    
-                    processPacket(type, data);
-                    
-                } catch (Exception e) {
-                    if (running) {
-                        Log.e(TAG, "Error en loop de recepción", e);
-                        listener.onError("Error de red: " + e.getMessage());
-                        disconnect();
-                    }
-                    break;
-                }
-            }
-        });
-    }
-    
-    private void processPacket(int type, byte[] data) throws Exception {
+    /**
+     * Despachar un mensaje de control. data[offset, offset + length) es una
+     * vista sobre el buffer de recepción: se parsea en el sitio y no debe
+     * guardarse tras volver.
+     */
+    private void processPacket(int type, byte[] data, int offset, int length) throws Exception {
         switch (type) {
             case MumbleProtocol.MessageType.SERVER_SYNC:
-                handleServerSync(data);
+                handleServerSync(data, offset, length);
                 break;
             case MumbleProtocol.MessageType.USER_STATE:
-                handleUserState(data);
+                handleUserState(data, offset, length);
                 break;
             case MumbleProtocol.MessageType.USER_REMOVE:
-                handleUserRemove(data);
+                handleUserRemove(data, offset, length);
                 break;
             case MumbleProtocol.MessageType.CHANNEL_STATE:
-                handleChannelState(data);
+                handleChannelState(data, offset, length);
+                break;
+            case MumbleProtocol.MessageType.CHANNEL_REMOVE:
+                handleChannelRemove(data, offset, length);
                 break;
             case MumbleProtocol.MessageType.TEXT_MESSAGE:
-                handleTextMessage(data);
+                handleTextMessage(data, offset, length);
                 break;
             case MumbleProtocol.MessageType.UDPTUNNEL:
-                handleUDPTunnel(data);
+                handleUDPTunnel(data, offset, length);
                 break;
             case MumbleProtocol.MessageType.CRYPT_SETUP:
-                handleCryptSetup(data);
+                handleCryptSetup(data, offset, length);
                 break;
             case MumbleProtocol.MessageType.PERMISSION_DENIED:
-                handlePermissionDenied(data);
+                handlePermissionDenied(data, offset, length);
+                break;
+            case MumbleProtocol.MessageType.PING:
+                handlePing(data, offset, length);
                 break;
         }
     }
     
-    private void handleServerSync(byte[] data) throws Exception {
-        MumbleProtocol.ServerSync sync = MumbleProtocol.ServerSync.parseFrom(data);
+    private void handleServerSync(byte[] data, int offset, int length) throws Exception {
+        MumbleProtocol.ServerSync sync = MumbleProtocol.ServerSync.parser().parseFrom(data, offset, length);
         sessionId = sync.getSession();
-        currentChannelId = sync.getMaxBandwidth(); // Ajustar según proto real
-        Log.i(TAG, "Sincronizado con servidor, session: " + sessionId);
+        if (sync.hasMaxBandwidth()) {
+            maxBandwidth = sync.getMaxBandwidth();
+        }
+        Log.i(TAG, "Sincronizado con servidor, session: " + sessionId + ", ancho de banda máx: " + maxBandwidth);
+        recordConnectTiming();
+        if (lostAtMs > 0) {
+            restoreSession();
+        } else {
+            // Nuestro UserState llega antes que ServerSync
+            MurmurUser self = users.get(sessionId);
+            ChannelTree.Node channel = self != null ? channels.get(self.getChannelId()) : null;
+            if (channel != null) {
+                currentChannelId = channel.getId();
+                lastChannelPath = channel.getPath();
+            }
+        }
     }
     
-    private void handleUserState(byte[] data) throws Exception {
-        MumbleProtocol.UserState state = MumbleProtocol.UserState.parseFrom(data);
+    private void recordConnectTiming() {
+        TlsChannel channel = controlChannel;
+        if (channel == null || channel.getEstablishedAtMs() == 0) return;
+        long now = SystemClock.elapsedRealtime();
+        long authAccepted = authAcceptedMs > 0 ? authAcceptedMs : now;
+        connectTiming = new ConnectTiming(channel.getResolveMs(), channel.getTcpConnectMs(),
+            channel.getHandshakeMs(), authAccepted - channel.getEstablishedAtMs(),
+            now - authAccepted, channel.isResumed());
+        Log.i(TAG, "Fases de conexión a " + server.getName() + ": " + connectTiming);
+    }
+    
+    private void handleUserState(byte[] data, int offset, int length) throws Exception {
+        MumbleProtocol.UserState state = MumbleProtocol.UserState.parser().parseFrom(data, offset, length);
         
         int userId = state.getSession();
         MurmurUser user = users.get(userId);
+        boolean isNew = user == null;
         
-        if (user == null) {
+        if (isNew) {
             user = new MurmurUser(userId, state.getName());
+            // Silencio local por nombre: se mantiene entre sesiones
+            user.setLocallyMuted(locallyMutedNames.contains(user.getName()));
             users.put(userId, user);
-            listener.onUserJoined(user);
         }
         
-        user.setMute(state.getMute());
-        user.setDeaf(state.getDeaf());
-        user.setSuppress(state.getSuppress());
-        user.setSelfMute(state.getSelfMute());
-        user.setSelfDeaf(state.getSelfDeaf());
+        // Solo los campos presentes: el servidor envía únicamente lo que cambia
+        int changes = 0;
+        if (state.hasName() && !state.getName().equals(user.getName())) {
+            user.setName(state.getName());
+            changes |= MurmurUser.CHANGED_NAME;
+        }
+        if (state.hasMute() && state.getMute() != user.isMute()) {
+            user.setMute(state.getMute());
+            changes |= MurmurUser.CHANGED_MUTE;
+        }
+        if (state.hasDeaf() && state.getDeaf() != user.isDeaf()) {
+            user.setDeaf(state.getDeaf());
+            changes |= MurmurUser.CHANGED_DEAF;
+        }
+        if (state.hasSuppress() && state.getSuppress() != user.isSuppress()) {
+            user.setSuppress(state.getSuppress());
+            changes |= MurmurUser.CHANGED_SUPPRESS;
+        }
+        if (state.hasSelfMute() && state.getSelfMute() != user.isSelfMute()) {
+            user.setSelfMute(state.getSelfMute());
+            changes |= MurmurUser.CHANGED_SELF_MUTE;
+        }
+        if (state.hasSelfDeaf() && state.getSelfDeaf() != user.isSelfDeaf()) {
+            user.setSelfDeaf(state.getSelfDeaf());
+            changes |= MurmurUser.CHANGED_SELF_DEAF;
+        }
+        if (state.hasPrioritySpeaker() && state.getPrioritySpeaker() != user.isPrioritySpeaker()) {
+            user.setPrioritySpeaker(state.getPrioritySpeaker());
+            changes |= MurmurUser.CHANGED_PRIORITY_SPEAKER;
+        }
+        if (state.hasRecording() && state.getRecording() != user.isRecording()) {
+            user.setRecording(state.getRecording());
+            changes |= MurmurUser.CHANGED_RECORDING;
+        }
+        if (state.hasComment() && !state.getComment().equals(user.getComment())) {
+            user.setComment(state.getComment());
+            changes |= MurmurUser.CHANGED_COMMENT;
+        }
         
-        if (state.hasChannelId()) {
+        // Un usuario nuevo sin channel_id está en la raíz
+        if ((state.hasChannelId() && state.getChannelId() != user.getChannelId()) || isNew) {
             user.setChannelId(state.getChannelId());
+            channels.setUserChannel(user, state.getChannelId());
+            changes |= MurmurUser.CHANGED_CHANNEL;
+            if (userId == sessionId) {
+                // Nuestro canal, para volver a él tras una reconexión
+                currentChannelId = state.getChannelId();
+                ChannelTree.Node channel = channels.get(currentChannelId);
+                if (channel != null) {
+                    lastChannelPath = channel.getPath();
+                }
+            }
         }
         
-        if (state.hasComment()) {
-            user.setComment(state.getComment());
+        if (isNew) {
+            markUserDirty(userId);
+            listener.onUserJoined(user);
+        } else if (changes != 0) {
+            markUserDirty(userId);
+            listener.onUserChanged(user, changes);
         }
     }
     
-    private void handleUserRemove(byte[] data) throws Exception {
-        MumbleProtocol.UserRemove remove = MumbleProtocol.UserRemove.parseFrom(data);
+    private void handleUserRemove(byte[] data, int offset, int length) throws Exception {
+        MumbleProtocol.UserRemove remove = MumbleProtocol.UserRemove.parser().parseFrom(data, offset, length);
         MurmurUser user = users.remove(remove.getSession());
         if (user != null) {
+            usersDirty = true;
+            channels.removeUser(user);
             listener.onUserLeft(user);
         }
     }
     
-    private void handleChannelState(byte[] data) throws Exception {
-        MumbleProtocol.ChannelState state = MumbleProtocol.ChannelState.parseFrom(data);
-        Channel ch = new Channel();
-        ch.id = state.getChannelId();
-        ch.name = state.getName();
-        ch.parent = state.getParent();
-        channels.put(ch.id, ch);
+    private void handleChannelState(byte[] data, int offset, int length) throws Exception {
+        MumbleProtocol.ChannelState state = MumbleProtocol.ChannelState.parser().parseFrom(data, offset, length);
+        channels.apply(state);
+        channelsDirty = true;
+    }
+    
+    private void handleChannelRemove(byte[] data, int offset, int length) throws Exception {
+        MumbleProtocol.ChannelRemove remove = MumbleProtocol.ChannelRemove.parser().parseFrom(data, offset, length);
+        ChannelTree.Node removed = channels.remove(remove.getChannelId());
+        if (removed != null) {
+            channelsDirty = true;
+            Log.d(TAG, "Canal eliminado: " + removed);
+        }
+    }
+    
+    private void markUserDirty(int session) {
+        dirtyUsers.add(session);
+        usersDirty = true;
+    }
+    
+    /**
+     * Publicar una nueva vista si el lote ha cambiado usuarios o canales
+     * (thread de E/S). Reutiliza las copias de los usuarios sin cambios y los
+     * canales de la vista anterior si no han cambiado.
+     */
+    private void publishSnapshot() {
+        if (!usersDirty && !channelsDirty) return;
+        ServerSnapshot previous = snapshot;
+        
+        List<MurmurUser> frozen = new ArrayList<>(users.size());
+        SparseArray<MurmurUser> frozenBySession = new SparseArray<>(users.size());
+        for (MurmurUser user : users.values()) {
+            MurmurUser copy = dirtyUsers.contains(user.getSessionId())
+                ? null : previous.getUser(user.getSessionId());
+            if (copy == null) {
+                copy = new MurmurUser(user);
+            }
+            frozen.add(copy);
+            frozenBySession.put(copy.getSessionId(), copy);
+        }
+        List<ServerSnapshot.Channel> channelList = channelsDirty
+            ? channels.snapshotChannels() : previous.getChannels();
+        // La pertenencia a canales sale del índice del árbol
+        SparseArray<List<MurmurUser>> members = channels.snapshotMembers(frozenBySession);
+        
+        snapshot = new ServerSnapshot(previous.getVersion() + 1, frozen, frozenBySession, members,
+                                      channelList, previous);
+        dirtyUsers.clear();
+        usersDirty = false;
+        channelsDirty = false;
     }
     
-    private void handleUDPTunnel(byte[] data) {
+    private void handleUDPTunnel(byte[] data, int offset, int length) {
         // Audio recibido via TCP tunnel
-        handleAudioPacket(data, -1); // -1 indica TCP
+        tcpPacketsReceived++;
+        handleAudioPacket(tcpVoicePacket, data, offset, length);
+    }
+    
+    private void handleUdpAudio(byte[] data, int length) {
+        if (length > 0 && VoicePacket.peekType(data, 0) == VoicePacket.TYPE_PING) {
+            // Respuesta a nuestro ping UDP
+            long timestamp = udpVoicePacket.parsePing(data, 0, length);
+            if (timestamp >= 0) {
+                long now = SystemClock.elapsedRealtime();
+                pathManager.onPong(now, now - timestamp);
+                networkStats.onUdpRtt(now - timestamp);
+            }
+            return;
+        }
+        // Audio recibido via UDP (ya descifrado)
+        handleAudioPacket(udpVoicePacket, data, 0, length);
     }
     
-    private void handleAudioPacket(byte[] data, int senderSession) {
+    /**
+     * Ping UDP periódico que decide la ruta de la voz (thread de E/S)
+     */
+    private void sendUdpPing() {
+        long now = SystemClock.elapsedRealtime();
+        UDPTunnel tunnel = udpTunnel;
+        if (tunnel == null || !tunnel.isConnected()) {
+            pathManager.onUdpUnavailable(now);
+            return;
+        }
+        pathManager.onPingSent(now);
         try {
-            // Decodificar header
-            byte header = data[0];
-            int type = (header >> 5) & 0x7;
-            int target = header & 0x1F;
-            
-            // Extraer payload Opus
-            byte[] opusData = new byte[data.length - 1];
-            System.arraycopy(data, 1, opusData, 0, opusData.length);
+            int length = VoicePacket.writePing(udpPingBuffer, 0, now);
+            tunnel.send(udpPingBuffer, 0, length);
+        } catch (Exception e) {
+            Log.d(TAG, "Error enviando ping UDP: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Ping TCP periódico (thread de E/S). Lleva los contadores del cifrado UDP
+     * y nuestras medidas de RTT, como el cliente de Mumble; el servidor
+     * responde con los suyos.
+     */
+    private void sendTcpPing() {
+        long now = SystemClock.elapsedRealtime();
+        long silence = now - lastTcpPongMs;
+        if (silence > TCP_PING_TIMEOUT_MS) {
+            Log.e(TAG, "Sin respuesta al ping TCP en " + silence + " ms");
+            connectionLost("Error de red: el servidor no responde");
+            return;
+        }
+        
+        UDPTunnel tunnel = udpTunnel;
+        MumbleProtocol.Ping.Builder ping = MumbleProtocol.Ping.newBuilder()
+            .setTimestamp(now)
+            .setGood(cryptState.getGood())
+            .setLate(cryptState.getLate())
+            .setLost(cryptState.getLost())
+            .setResync(cryptState.getResync())
+            .setUdpPackets(tunnel != null ? (int) tunnel.getPacketsReceived() : 0)
+            .setTcpPackets((int) tcpPacketsReceived);
+        // El protocolo lleva la varianza; nosotros medimos la desviación
+        if (networkStats.getUdpRttMs() >= 0) {
+            double var = networkStats.getUdpRttVarMs();
+            ping.setUdpPingAvg((float) networkStats.getUdpRttMs()).setUdpPingVar((float) (var * var));
+        }
+        if (networkStats.getTcpRttMs() >= 0) {
+            double var = networkStats.getTcpRttVarMs();
+            ping.setTcpPingAvg((float) networkStats.getTcpRttMs()).setTcpPingVar((float) (var * var));
+        }
+        try {
+            sendPacket(MumbleProtocol.MessageType.PING, ping.build().toByteArray());
+        } catch (Exception e) {
+            Log.d(TAG, "Error enviando ping TCP: " + e.getMessage());
+        }
+    }
+    
+    private void handlePing(byte[] data, int offset, int length) throws Exception {
+        MumbleProtocol.Ping ping = MumbleProtocol.Ping.parser().parseFrom(data, offset, length);
+        long now = SystemClock.elapsedRealtime();
+        lastTcpPongMs = now;
+        if (ping.hasTimestamp()) {
+            networkStats.onTcpRtt(now - ping.getTimestamp());
+        }
+        // Contadores del servidor: cómo le llegan nuestros paquetes UDP
+        networkStats.onRemoteCounters(ping.getGood(), ping.getLost());
+        networkStats.onLocalCounters(cryptState.getGood(), cryptState.getLost());
+        
+        boolean udp = pathManager.isUdp();
+        updatePathCongestion(udp);
+        int rtt = networkStats.getRttMs(udp);
+        if (rtt >= 0) {
+            // Por el túnel TCP no hay pérdidas de paquetes de voz
+            listener.onNetworkStats(rtt, networkStats.getJitterMs(udp),
+                                    udp ? networkStats.getUplinkLossPercent() : 0);
+        }
+    }
+    
+    private void handleAudioPacket(VoicePacket packet, byte[] data, int offset, int length) {
+        try {
+            // Decodificar cabecera, sesión, secuencia y longitud sin copiar el payload
+            if (!packet.parse(data, offset, length, true)) {
+                return;
+            }
             
             // Buscar usuario remitente
-            MurmurUser from = users.get(senderSession);
-            if (from == null && senderSession == -1) {
-                // Buscar por target o usar desconocido
-                from = new MurmurUser(-1, "Desconocido");
+            MurmurUser from = users.get(packet.getSession());
+            if (from == null) {
+                Log.d(TAG, "Audio de sesión desconocida: " + packet.getSession());
+                return;
             }
             
             if (!from.isLocallyMuted()) {
-                listener.onAudioReceived(opusData, from);
+                // Visible también en las copias de la vista publicada
+                from.updateActivity();
+                listener.onAudioReceived(from, packet);
             }
             
         } catch (Exception e) {
@@ -400,33 +1063,49 @@ public class MurmurConnection {
         }
     }
     
-    private void handleCryptSetup(byte[] data) throws Exception {
-        MumbleProtocol.CryptSetup crypt = MumbleProtocol.CryptSetup.parseFrom(data);
-        cryptState.setKey(crypt.getKey().toByteArray(), 
-                         crypt.getClientNonce().toByteArray(),
-                         crypt.getServerNonce().toByteArray());
+    private void handleCryptSetup(byte[] data, int offset, int length) throws Exception {
+        MumbleProtocol.CryptSetup crypt = MumbleProtocol.CryptSetup.parser().parseFrom(data, offset, length);
+        if (crypt.hasKey() && crypt.hasClientNonce() && crypt.hasServerNonce()) {
+            // Clave inicial
+            cryptState.setKey(crypt.getKey().toByteArray(),
+                             crypt.getClientNonce().toByteArray(),
+                             crypt.getServerNonce().toByteArray());
+            Log.i(TAG, "Cifrado UDP establecido");
+        } else if (crypt.hasServerNonce()) {
+            // Respuesta a nuestra petición de resincronización
+            cryptState.setDecryptIv(crypt.getServerNonce().toByteArray());
+            Log.i(TAG, "Nonce UDP resincronizado: " + cryptState);
+        } else {
+            // El servidor pide nuestro nonce de cifrado
+            sendPacket(MumbleProtocol.MessageType.CRYPT_SETUP, MumbleProtocol.CryptSetup.newBuilder()
+                .setClientNonce(ByteString.copyFrom(cryptState.getEncryptIv()))
+                .build().toByteArray());
+        }
     }
     
-    private void handlePermissionDenied(byte[] data) throws Exception {
-        MumbleProtocol.PermissionDenied denied = MumbleProtocol.PermissionDenied.parseFrom(data);
+    private void handlePermissionDenied(byte[] data, int offset, int length) throws Exception {
+        MumbleProtocol.PermissionDenied denied = MumbleProtocol.PermissionDenied.parser().parseFrom(data, offset, length);
         Log.w(TAG, "Permiso denegado: " + denied.getReason());
     }
     
-    private void handleTextMessage(byte[] data) {
+    private void handleTextMessage(byte[] data, int offset, int length) {
         // Implementar mensajes de texto si es necesario
     }
     
     private void sendPacket(int type, byte[] data) throws Exception {
-        synchronized (output) {
-            output.writeShort(type);
-            output.writeInt(data.length);
-            output.write(data);
-            output.flush();
+        sendPacket(type, data, 0, data.length);
+    }
+    
+    private void sendPacket(int type, byte[] data, int offset, int length) throws Exception {
+        TlsChannel channel = controlChannel;
+        if (channel == null) {
+            throw new IOException("Canal de control no abierto");
         }
+        channel.send(type, data, offset, length);
     }
     
-    private void sendUDPTunnelPacket(byte[] audioData) throws Exception {
-        sendPacket(MumbleProtocol.MessageType.UDPTUNNEL, audioData);
+    private void sendUDPTunnelPacket(byte[] audioData, int offset, int length) throws Exception {
+        sendPacket(MumbleProtocol.MessageType.UDPTUNNEL, audioData, offset, length);
     }
     
     private void sendUserState(int channelId) throws Exception {
@@ -437,6 +1116,25 @@ public class MurmurConnection {
         sendPacket(MumbleProtocol.MessageType.USER_STATE, state.toByteArray());
     }
     
+    private void sendSelfStateSafe() {
+        try {
+            sendSelfState();
+        } catch (Exception e) {
+            // Sin conexión: se envía al restaurar la sesión
+            Log.d(TAG, "Estado propio no enviado: " + e.getMessage());
+        }
+    }
+    
+    private void sendSelfState() throws Exception {
+        if (sessionId < 0) return;
+        MumbleProtocol.UserState state = MumbleProtocol.UserState.newBuilder()
+            .setSession(sessionId)
+            .setSelfMute(selfMute)
+            .setSelfDeaf(selfDeaf)
+            .build();
+        sendPacket(MumbleProtocol.MessageType.USER_STATE, state.toByteArray());
+    }
+    
     private void sendUserState(int userId, int channelId) throws Exception {
         MumbleProtocol.UserState state = MumbleProtocol.UserState.newBuilder()
             .setSession(userId)
@@ -456,26 +1154,67 @@ public class MurmurConnection {
         sendPacket(MumbleProtocol.MessageType.USER_REMOVE, remove.toByteArray());
     }
     
-    private Channel findChannelByName(String name) {
-        for (Channel ch : channels.values()) {
-            if (ch.name.equals(name)) {
-                return ch;
-            }
-        }
-        return null;
-    }
-    
     public boolean isConnected() {
         return connected;
     }
     
+    /**
+     * Ancho de banda máximo por usuario anunciado por el servidor (bits/s, 0 si no se conoce)
+     */
+    public int getMaxBandwidth() {
+        return maxBandwidth;
+    }
+    
     public MurmurServer getServer() {
         return server;
     }
     
-    private static class Channel {
-        int id;
-        String name;
-        int parent;
+    /**
+     * Estado del cifrado UDP (contadores de paquetes buenos, tardíos, perdidos y resincronizaciones)
+     */
+    public CryptState getCryptState() {
+        return cryptState;
+    }
+    
+    /**
+     * Árbol de canales del servidor (búsqueda por id, nombre o ruta)
+     */
+    public ChannelTree getChannelTree() {
+        return channels;
+    }
+    
+    /**
+     * Duración de las fases de la última conexión completada (null si no ha habido)
+     */
+    public ConnectTiming getConnectTiming() {
+        return connectTiming;
+    }
+    
+    /**
+     * RTT, jitter y pérdidas medidos con los pings
+     */
+    public NetworkStats getNetworkStats() {
+        return networkStats;
+    }
+    
+    /**
+     * Ruta actual de la voz, cambios de ruta y tiempo en cada una
+     */
+    public PathManager getPathManager() {
+        return pathManager;
+    }
+    
+    /**
+     * Canal UDP de voz (null si no se usa UDP o aún no está abierto)
+     */
+    public UDPTunnel getUdpTunnel() {
+        return udpTunnel;
+    }
+    
+    /**
+     * Canal de control TLS (profundidad de cola y métricas de escritura)
+     */
+    public TlsChannel getControlChannel() {
+        return controlChannel;
     }
 }
@@ -0,0 +1,418 @@
+package com.atakmap.android.murmurptt.network;
+
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.atakmap.android.murmurptt.model.MurmurUser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Árbol de canales de un servidor con índices por id, nombre y ruta completa
+ * ("Root/Ops/Alpha"), todos con búsqueda O(1).
+ *
+ * Se actualiza de forma incremental con cada ChannelState (solo los campos
+ * presentes) y ChannelRemove desde el thread de E/S; renombrar o mover un
+ * canal recalcula solo las rutas de su subárbol. Un canal cuyo padre aún no
+ * se conoce queda pendiente y se engancha cuando llega el padre. Las
+ * búsquedas pueden hacerse desde cualquier thread; getChildren() devuelve una
+ * copia hecha con el cerrojo del árbol, y getParent() solo debe recorrerse
+ * desde el thread de E/S.
+ *
+ * También mantiene qué usuarios hay en cada canal, actualizado con cada
+ * cambio de canal de un UserState y con UserRemove. Es el único índice de
+ * pertenencia: cada ServerSnapshot lo copia (snapshotMembers) y las lecturas
+ * se hacen sobre la vista.
+ */
+public class ChannelTree {
+    
+    private static final String TAG = "ChannelTree";
+    public static final char PATH_SEPARATOR = '/';
+    
+    /**
+     * Canal del árbol. Solo el árbol lo modifica.
+     */
+    public static final class Node {
+        private final ChannelTree tree;
+        private final int id;
+        private String name = "";
+        private int parentId = -1;
+        private Node parent;
+        private final ArrayList<Node> children = new ArrayList<>();
+        private String path = "";
+        private int position = 0;
+        private boolean temporary = false;
+        
+        private Node(ChannelTree tree, int id) {
+            this.tree = tree;
+            this.id = id;
+        }
+        
+        public int getId() { return id; }
+        public String getName() { return name; }
+        /**
+         * Id del padre, -1 en la raíz
+         */
+        public int getParentId() { return parentId; }
+        public Node getParent() { return parent; }
+        /**
+         * Copia de los hijos: el thread de E/S puede modificar el árbol a la vez
+         */
+        public List<Node> getChildren() {
+            synchronized (tree) {
+                return new ArrayList<>(children);
+            }
+        }
+        /**
+         * Ruta completa desde la raíz, con '/' entre nombres
+         */
+        public String getPath() { return path; }
+        public int getPosition() { return position; }
+        public boolean isTemporary() { return temporary; }
+        
+        @Override
+        public String toString() {
+            return path + " (" + id + ")";
+        }
+    }
+    
+    private final SparseArray<Node> byId = new SparseArray<>();
+    // Nombres repetidos bajo distintos padres: todos los canales con ese nombre
+    private final HashMap<String, ArrayList<Node>> byName = new HashMap<>();
+    private final HashMap<String, Node> byPath = new HashMap<>();
+    // Canales cuyo padre aún no ha llegado, por id del padre
+    private final SparseArray<ArrayList<Node>> orphans = new SparseArray<>();
+    
+    // Pertenencia: usuarios por id de canal y canal por sesión. Independiente
+    // de los Node para no perderla si el usuario llega antes que su canal.
+    private final SparseArray<ArrayList<MurmurUser>> members = new SparseArray<>();
+    private final SparseIntArray userChannels = new SparseIntArray();
+    
+    /**
+     * Aplicar un ChannelState: crea el canal o actualiza solo los campos presentes
+     */
+    public synchronized Node apply(MumbleProtocol.ChannelState state) {
+        int id = state.getChannelId();
+        Node node = byId.get(id);
+        boolean created = node == null;
+        if (created) {
+            node = new Node(this, id);
+            byId.put(id, node);
+        }
+        
+        boolean renamed = state.hasName() && !state.getName().equals(node.name);
+        boolean moved = state.hasParent() && state.getParent() != node.parentId && state.getParent() != id;
+        if (state.hasPosition()) {
+            node.position = state.getPosition();
+        }
+        if (state.hasTemporary()) {
+            node.temporary = state.getTemporary();
+        }
+        if (!created && !renamed && !moved) {
+            return node;
+        }
+        
+        unindexSubtree(node);
+        if (renamed) {
+            node.name = state.getName();
+        }
+        if (moved || created) {
+            detach(node);
+            if (state.hasParent() && state.getParent() != id) {
+                node.parentId = state.getParent();
+            }
+            attach(node);
+        }
+        if (created) {
+            adoptOrphans(node);
+        }
+        indexSubtree(node);
+        return node;
+    }
+    
+    /**
+     * Eliminar un canal y su subárbol (ChannelRemove)
+     */
+    public synchronized Node remove(int id) {
+        Node node = byId.get(id);
+        if (node == null) return null;
+        unindexSubtree(node);
+        detach(node);
+        removeSubtree(node);
+        return node;
+    }
+    
+    public synchronized void clear() {
+        byId.clear();
+        byName.clear();
+        byPath.clear();
+        orphans.clear();
+        members.clear();
+        userChannels.clear();
+    }
+    
+    public synchronized Node get(int id) {
+        return byId.get(id);
+    }
+    
+    /**
+     * Canal por ruta completa ("Root/Ops/Alpha")
+     */
+    public synchronized Node findByPath(String path) {
+        return byPath.get(path);
+    }
+    
+    /**
+     * Canal por nombre. Si varios canales se llaman igual devuelve el primero
+     * conocido; para distinguirlos usar findByPath.
+     */
+    public synchronized Node findByName(String name) {
+        ArrayList<Node> nodes = byName.get(name);
+        return nodes != null && !nodes.isEmpty() ? nodes.get(0) : null;
+    }
+    
+    /**
+     * Canales con ese nombre en cualquier parte del árbol
+     */
+    public synchronized List<Node> findAllByName(String name) {
+        ArrayList<Node> nodes = byName.get(name);
+        return nodes != null ? new ArrayList<>(nodes) : Collections.<Node>emptyList();
+    }
+    
+    /**
+     * Buscar por ruta si contiene '/', si no por nombre
+     */
+    public synchronized Node find(String nameOrPath) {
+        if (nameOrPath.indexOf(PATH_SEPARATOR) >= 0) {
+            return byPath.get(nameOrPath);
+        }
+        Node node = byPath.get(nameOrPath);
+        return node != null ? node : findByName(nameOrPath);
+    }
+    
+    /**
+     * Canal raíz (id 0 en Murmur), o null si aún no se conoce
+     */
+    public synchronized Node getRoot() {
+        return byId.get(0);
+    }
+    
+    public synchronized int size() {
+        return byId.size();
+    }
+    
+    /**
+     * Canales actuales para una ServerSnapshot
+     */
+    synchronized List<ServerSnapshot.Channel> snapshotChannels() {
+        ArrayList<ServerSnapshot.Channel> result = new ArrayList<>(byId.size());
+        for (int i = 0; i < byId.size(); i++) {
+            Node node = byId.valueAt(i);
+            result.add(new ServerSnapshot.Channel(node.id, node.parentId, node.name, node.path));
+        }
+        return result;
+    }
+    
+    /**
+     * Ids del canal y de todos sus subcanales
+     */
+    public synchronized int[] getSubtreeIds(int channelId) {
+        Node node = byId.get(channelId);
+        if (node == null) return new int[0];
+        ArrayList<Node> pending = new ArrayList<>();
+        pending.add(node);
+        int[] ids = new int[8];
+        int count = 0;
+        while (!pending.isEmpty()) {
+            Node n = pending.remove(pending.size() - 1);
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = n.id;
+            pending.addAll(n.children);
+        }
+        return Arrays.copyOf(ids, count);
+    }
+    
+    // ==================== USUARIOS ====================
+    
+    /**
+     * Usuario en un canal (UserState nuevo o con cambio de canal)
+     */
+    public synchronized void setUserChannel(MurmurUser user, int channelId) {
+        int session = user.getSessionId();
+        int previous = userChannels.get(session, -1);
+        if (previous == channelId) return;
+        if (previous >= 0) {
+            removeMember(previous, session);
+        }
+        ArrayList<MurmurUser> list = members.get(channelId);
+        if (list == null) {
+            list = new ArrayList<>();
+            members.put(channelId, list);
+        }
+        list.add(user);
+        userChannels.put(session, channelId);
+    }
+    
+    /**
+     * Usuario desconectado (UserRemove)
+     */
+    public synchronized void removeUser(MurmurUser user) {
+        int session = user.getSessionId();
+        int channelId = userChannels.get(session, -1);
+        if (channelId < 0) return;
+        userChannels.delete(session);
+        removeMember(channelId, session);
+    }
+    
+    private void removeMember(int channelId, int session) {
+        ArrayList<MurmurUser> list = members.get(channelId);
+        if (list == null) return;
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).getSessionId() == session) {
+                list.remove(i);
+                break;
+            }
+        }
+        if (list.isEmpty()) {
+            members.remove(channelId);
+        }
+    }
+    
+    /**
+     * Miembros de cada canal para una vista (ServerSnapshot): las listas del
+     * índice con cada usuario sustituido por su copia congelada
+     */
+    synchronized SparseArray<List<MurmurUser>> snapshotMembers(SparseArray<MurmurUser> frozenBySession) {
+        SparseArray<List<MurmurUser>> result = new SparseArray<>(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            ArrayList<MurmurUser> list = members.valueAt(i);
+            ArrayList<MurmurUser> copies = new ArrayList<>(list.size());
+            for (int j = 0; j < list.size(); j++) {
+                MurmurUser copy = frozenBySession.get(list.get(j).getSessionId());
+                if (copy != null) {
+                    copies.add(copy);
+                }
+            }
+            result.put(members.keyAt(i), Collections.unmodifiableList(copies));
+        }
+        return result;
+    }
+    
+    // ==================== ESTRUCTURA ====================
+    
+    private void attach(Node node) {
+        if (node.parentId < 0) return;
+        Node parent = byId.get(node.parentId);
+        if (parent == null) {
+            ArrayList<Node> waiting = orphans.get(node.parentId);
+            if (waiting == null) {
+                waiting = new ArrayList<>();
+                orphans.put(node.parentId, waiting);
+            }
+            waiting.add(node);
+            return;
+        }
+        if (isAncestor(node, parent)) {
+            Log.w(TAG, "Ciclo en el árbol de canales: " + node.id + " bajo " + parent.id);
+            node.parentId = -1;
+            return;
+        }
+        node.parent = parent;
+        parent.children.add(node);
+    }
+    
+    private void detach(Node node) {
+        if (node.parent != null) {
+            node.parent.children.remove(node);
+            node.parent = null;
+        } else if (node.parentId >= 0) {
+            ArrayList<Node> waiting = orphans.get(node.parentId);
+            if (waiting != null) {
+                waiting.remove(node);
+                if (waiting.isEmpty()) {
+                    orphans.remove(node.parentId);
+                }
+            }
+        }
+    }
+    
+    private void adoptOrphans(Node parent) {
+        ArrayList<Node> waiting = orphans.get(parent.id);
+        if (waiting == null) return;
+        orphans.remove(parent.id);
+        for (Node child : waiting) {
+            // Sus rutas dejan de ser relativas a un padre desconocido
+            unindexSubtree(child);
+            child.parent = parent;
+            parent.children.add(child);
+        }
+    }
+    
+    private static boolean isAncestor(Node node, Node candidate) {
+        for (Node n = candidate; n != null; n = n.parent) {
+            if (n == node) return true;
+        }
+        return false;
+    }
+    
+    private void removeSubtree(Node node) {
+        byId.remove(node.id);
+        for (Node child : node.children) {
+            child.parent = null;
+            removeSubtree(child);
+        }
+        node.children.clear();
+        // Canales que esperaban a este como padre
+        ArrayList<Node> waiting = orphans.get(node.id);
+        if (waiting != null) {
+            orphans.remove(node.id);
+            for (Node orphan : waiting) {
+                unindexSubtree(orphan);
+                removeSubtree(orphan);
+            }
+        }
+    }
+    
+    // ==================== ÍNDICES ====================
+    
+    private void indexSubtree(Node node) {
+        node.path = node.parent != null
+            ? node.parent.path + PATH_SEPARATOR + node.name
+            : node.name;
+        ArrayList<Node> named = byName.get(node.name);
+        if (named == null) {
+            named = new ArrayList<>(1);
+            byName.put(node.name, named);
+        }
+        named.add(node);
+        if (byPath.put(node.path, node) != null) {
+            Log.w(TAG, "Ruta de canal repetida: " + node.path);
+        }
+        for (Node child : node.children) {
+            indexSubtree(child);
+        }
+    }
+    
+    private void unindexSubtree(Node node) {
+        ArrayList<Node> named = byName.get(node.name);
+        if (named != null) {
+            named.remove(node);
+            if (named.isEmpty()) {
+                byName.remove(node.name);
+            }
+        }
+        if (byPath.get(node.path) == node) {
+            byPath.remove(node.path);
+        }
+        for (Node child : node.children) {
+            unindexSubtree(child);
+        }
+    }
+}
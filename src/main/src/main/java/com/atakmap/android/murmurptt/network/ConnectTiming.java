@@ -0,0 +1,37 @@
+package com.atakmap.android.murmurptt.network;
+
+/**
+ * Duración de cada fase de una conexión a un servidor, en milisegundos:
+ * resolución DNS, conexión TCP, handshake TLS, versión y autenticación (hasta
+ * el primer mensaje del servidor tras aceptar la autenticación) y descarga del
+ * estado hasta ServerSync. resumed indica si el handshake reanudó una sesión
+ * TLS anterior.
+ */
+public final class ConnectTiming {
+    
+    public final long dnsMs;
+    public final long tcpMs;
+    public final long tlsMs;
+    public final long authMs;
+    public final long syncMs;
+    public final boolean resumed;
+    
+    public ConnectTiming(long dnsMs, long tcpMs, long tlsMs, long authMs, long syncMs, boolean resumed) {
+        this.dnsMs = dnsMs;
+        this.tcpMs = tcpMs;
+        this.tlsMs = tlsMs;
+        this.authMs = authMs;
+        this.syncMs = syncMs;
+        this.resumed = resumed;
+    }
+    
+    public long getTotalMs() {
+        return dnsMs + tcpMs + tlsMs + authMs + syncMs;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("total=%dms dns=%dms tcp=%dms tls=%dms%s auth=%dms sync=%dms",
+            getTotalMs(), dnsMs, tcpMs, tlsMs, resumed ? " (reanudada)" : "", authMs, syncMs);
+    }
+}
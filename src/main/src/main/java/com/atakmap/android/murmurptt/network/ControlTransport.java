@@ -0,0 +1,343 @@
+package com.atakmap.android.murmurptt.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Transporte de los canales de control TCP/TLS de todos los servidores.
+ *
+ * Un único thread de E/S multiplexa con un Selector los SocketChannel no
+ * bloqueantes de todas las conexiones, con un SSLEngine por canal
+ * (TlsChannel), y los DatagramChannel de voz (UDPTunnel). El número de
+ * threads no crece con el de servidores: solo existe el thread de E/S y dos
+ * grupos pequeños de threads auxiliares que terminan al quedar inactivos, uno
+ * para la resolución DNS y otro para las tareas delegadas del SSLEngine
+ * (validación de certificados, cálculo de claves). Separados, una resolución
+ * colgada no retrasa los handshakes de otros servidores. Las tareas periódicas de las conexiones (pings) también se
+ * ejecutan en el thread de E/S mediante schedule().
+ */
+public class ControlTransport {
+    
+    private static final String TAG = "ControlTransport";
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    public static final long CONNECT_TIMEOUT_MS = 15000;
+    // Threads de cada grupo auxiliar
+    private static final int AUX_THREADS = 2;
+    
+    /**
+     * Eventos de un canal. Se llaman siempre desde el thread de E/S.
+     */
+    public interface Handler {
+        /**
+         * Handshake TLS completado
+         */
+        void onEstablished(TlsChannel channel);
+        
+        /**
+         * Mensaje Mumble completo recibido en buffer[offset, offset + length).
+         * La vista apunta al buffer de recepción del canal y solo es válida
+         * durante la llamada.
+         */
+        void onMessage(TlsChannel channel, int type, byte[] buffer, int offset, int length);
+        
+        /**
+         * Fin de un lote: se han entregado todos los mensajes completos de
+         * una lectura
+         */
+        void onMessagesProcessed(TlsChannel channel);
+        
+        /**
+         * Canal cerrado. cause es null si el cierre fue local.
+         */
+        void onClosed(TlsChannel channel, Exception cause);
+    }
+    
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<TlsChannel> writeRequests = new ConcurrentLinkedQueue<>();
+    // Canales registrados (solo thread de E/S)
+    private final ArrayList<TlsChannel> channels = new ArrayList<>();
+    // Tareas programadas (solo thread de E/S)
+    private final ArrayList<ScheduledTask> timers = new ArrayList<>();
+    // Resolución DNS y tareas delegadas de TLS fuera del thread de E/S; los
+    // threads terminan tras 30 s inactivos
+    private final ExecutorService resolver = newAuxExecutor("PTTResolver");
+    private final ExecutorService tlsTasks = newAuxExecutor("PTTTlsTasks");
+    
+    private volatile Selector selector;
+    private Thread ioThread;
+    private volatile boolean running = false;
+    
+    /**
+     * Arrancar el thread de E/S
+     */
+    public synchronized void start() throws IOException {
+        if (running) return;
+        selector = Selector.open();
+        running = true;
+        ioThread = new Thread(this::ioLoop, "PTTNetworkIO");
+        ioThread.start();
+    }
+    
+    /**
+     * Detener el thread de E/S cerrando todos los canales
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        resolver.shutdownNow();
+        tlsTasks.shutdownNow();
+    }
+    
+    private static ExecutorService newAuxExecutor(String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(AUX_THREADS, AUX_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> new Thread(r, name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
+    /**
+     * Abrir un canal TLS hacia host:port. Vuelve inmediatamente; el resultado
+     * llega al handler. Un mensaje recibido mayor que maxMessageSize cierra el
+     * canal; el límite rige desde el primer byte leído. El plazo de conexión
+     * empieza aquí: una resolución DNS que no termina a tiempo falla el intento.
+     */
+    public TlsChannel open(String host, int port, SSLContext sslContext, int maxMessageSize,
+                           Handler handler) {
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        TlsChannel channel = new TlsChannel(this, engine, sslContext.getClientSessionContext(),
+                                            maxMessageSize, SystemClock.elapsedRealtime() + CONNECT_TIMEOUT_MS,
+                                            handler);
+        // Registrado desde ya para que checkTimeouts() vigile también la resolución
+        execute(() -> channels.add(channel));
+        
+        resolver.execute(() -> {
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            channel.onResolved();
+            if (address.isUnresolved()) {
+                execute(() -> channel.fail(new UnknownHostException(host)));
+            } else {
+                execute(() -> connect(channel, address));
+            }
+        });
+        return channel;
+    }
+    
+    /**
+     * Tarea programada en el thread de E/S
+     */
+    public static final class ScheduledTask {
+        private final Runnable task;
+        private final long periodMs;
+        private long nextMs;
+        private volatile boolean cancelled = false;
+        
+        private ScheduledTask(Runnable task, long nextMs, long periodMs) {
+            this.task = task;
+            this.nextMs = nextMs;
+            this.periodMs = periodMs;
+        }
+        
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+    
+    /**
+     * Ejecutar task en el thread de E/S tras delayMs y después cada periodMs
+     * (una sola vez si periodMs <= 0)
+     */
+    public ScheduledTask schedule(Runnable task, long delayMs, long periodMs) {
+        ScheduledTask scheduled = new ScheduledTask(task,
+            SystemClock.elapsedRealtime() + Math.max(0, delayMs), periodMs);
+        execute(() -> timers.add(scheduled));
+        return scheduled;
+    }
+    
+    /**
+     * Ejecutar una tarea en el thread de E/S
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+    
+    /**
+     * Ejecutar tareas delegadas del SSLEngine fuera del thread de E/S
+     */
+    void executeTlsTask(Runnable task) {
+        tlsTasks.execute(task);
+    }
+    
+    public int getChannelCount() {
+        return channels.size();
+    }
+    
+    /**
+     * Un canal tiene mensajes pendientes de escribir
+     */
+    void requestWrite(TlsChannel channel) {
+        writeRequests.add(channel);
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+    
+    /**
+     * Registrar un canal UDP de voz en el Selector
+     */
+    void register(SelectableChannel channel, UDPTunnel tunnel) {
+        execute(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, tunnel);
+            } catch (ClosedChannelException e) {
+                Log.d(TAG, "Canal UDP cerrado antes de registrarse");
+            }
+        });
+    }
+    
+    void onChannelClosed(TlsChannel channel) {
+        channels.remove(channel);
+    }
+    
+    // ==================== THREAD DE E/S ====================
+    
+    private void connect(TlsChannel channel, InetSocketAddress address) {
+        if (channel.isClosed()) return;
+        try {
+            SocketChannel socket = SocketChannel.open();
+            socket.configureBlocking(false);
+            socket.socket().setTcpNoDelay(true);
+            SelectionKey key = socket.register(selector, SelectionKey.OP_CONNECT, channel);
+            channel.attach(socket, key, address);
+            
+            if (socket.connect(address)) {
+                channel.onConnectable();
+            }
+        } catch (Exception e) {
+            channel.fail(e);
+        }
+    }
+    
+    private void ioLoop() {
+        while (running) {
+            try {
+                selector.select(getSelectTimeout(SystemClock.elapsedRealtime()));
+                runTasks();
+                
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Object attachment = key.attachment();
+                    if (attachment instanceof TlsChannel) {
+                        ((TlsChannel) attachment).onReady(key);
+                    } else if (attachment instanceof UDPTunnel) {
+                        ((UDPTunnel) attachment).onReady(key);
+                    }
+                }
+                
+                long now = SystemClock.elapsedRealtime();
+                runTimers(now);
+                checkTimeouts(now);
+            } catch (Exception e) {
+                Log.e(TAG, "Error en loop de E/S", e);
+            }
+        }
+        
+        for (TlsChannel channel : new ArrayList<>(channels)) {
+            channel.fail(new IOException("Transporte detenido"));
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error cerrando selector", e);
+        }
+    }
+    
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.e(TAG, "Error en tarea de E/S", e);
+            }
+        }
+        TlsChannel channel;
+        while ((channel = writeRequests.poll()) != null) {
+            channel.onWriteRequested();
+        }
+    }
+    
+    private long getSelectTimeout(long now) {
+        long timeout = SELECT_TIMEOUT_MS;
+        for (int i = 0; i < timers.size(); i++) {
+            timeout = Math.min(timeout, timers.get(i).nextMs - now);
+        }
+        // 0 bloquearía indefinidamente
+        return Math.max(1, timeout);
+    }
+    
+    private void runTimers(long now) {
+        for (int i = timers.size() - 1; i >= 0; i--) {
+            ScheduledTask timer = timers.get(i);
+            if (timer.cancelled) {
+                timers.remove(i);
+                continue;
+            }
+            if (now < timer.nextMs) continue;
+            
+            if (timer.periodMs > 0) {
+                // Sin ráfagas de recuperación si el thread se ha retrasado
+                timer.nextMs = Math.max(timer.nextMs + timer.periodMs, now + 1);
+            } else {
+                timers.remove(i);
+            }
+            try {
+                timer.task.run();
+            } catch (Exception e) {
+                Log.e(TAG, "Error en tarea programada", e);
+            }
+        }
+    }
+    
+    private void checkTimeouts(long now) {
+        for (int i = channels.size() - 1; i >= 0; i--) {
+            TlsChannel channel = channels.get(i);
+            if (channel.isTimedOut(now)) {
+                channel.fail(new SocketTimeoutException("Tiempo de conexión agotado"));
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.atakmap.android.murmurptt.network;
+
+import android.os.SystemClock;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cifrado OCB2-AES128 de los paquetes UDP de voz de Mumble.
+ *
+ * Cada paquete lleva 4 bytes de cabecera: el byte bajo del IV y los 3 primeros
+ * bytes de la etiqueta OCB. El IV de descifrado se reconstruye a partir de ese
+ * byte, lo que permite contar paquetes buenos, tardíos y perdidos, y un
+ * historial de 256 entradas descarta repeticiones (ventana de replay).
+ *
+ * Los Cipher AES/ECB se crean al fijar la clave y los buffers de trabajo son
+ * fijos, así que cifrar y descifrar no asignan memoria. Cifrado (thread de
+ * captura) y descifrado (thread de E/S) usan cerrojos y buffers separados.
+ */
+public class CryptState {
+    
+    public static final int AES_BLOCK_SIZE = 16;
+    public static final int HEADER_SIZE = 4;
+    // Sin paquetes buenos durante este tiempo se pide resincronizar el nonce
+    private static final long RESYNC_TIMEOUT_MS = 5000;
+    
+    private final Object encryptLock = new Object();
+    private final Object decryptLock = new Object();
+    
+    // Estado de cifrado
+    private Cipher encryptCipher;
+    private final byte[] encryptIv = new byte[AES_BLOCK_SIZE];
+    private final byte[] encDelta = new byte[AES_BLOCK_SIZE];
+    private final byte[] encChecksum = new byte[AES_BLOCK_SIZE];
+    private final byte[] encTmp = new byte[AES_BLOCK_SIZE];
+    private final byte[] encPad = new byte[AES_BLOCK_SIZE];
+    private final byte[] encTag = new byte[AES_BLOCK_SIZE];
+    
+    // Estado de descifrado
+    private Cipher decryptEncCipher;
+    private Cipher decryptCipher;
+    private final byte[] decryptIv = new byte[AES_BLOCK_SIZE];
+    private final byte[] savedIv = new byte[AES_BLOCK_SIZE];
+    private final byte[] decryptHistory = new byte[256];
+    private final byte[] decDelta = new byte[AES_BLOCK_SIZE];
+    private final byte[] decChecksum = new byte[AES_BLOCK_SIZE];
+    private final byte[] decTmp = new byte[AES_BLOCK_SIZE];
+    private final byte[] decPad = new byte[AES_BLOCK_SIZE];
+    private final byte[] decTag = new byte[AES_BLOCK_SIZE];
+    
+    private volatile boolean valid = false;
+    
+    // Contadores locales (paquetes recibidos)
+    private volatile int good = 0;
+    private volatile int late = 0;
+    private volatile int lost = 0;
+    private volatile int resync = 0;
+    private volatile long lastGoodMs = 0;
+    private volatile long lastResyncRequestMs = 0;
+    
+    /**
+     * Fijar clave y nonces recibidos en CRYPT_SETUP
+     */
+    public void setKey(byte[] key, byte[] clientNonce, byte[] serverNonce) throws GeneralSecurityException {
+        if (key.length != AES_BLOCK_SIZE || clientNonce.length != AES_BLOCK_SIZE
+                || serverNonce.length != AES_BLOCK_SIZE) {
+            throw new GeneralSecurityException("CryptSetup con longitudes inválidas");
+        }
+        SecretKeySpec spec = new SecretKeySpec(key, "AES");
+        Cipher enc = Cipher.getInstance("AES/ECB/NoPadding");
+        enc.init(Cipher.ENCRYPT_MODE, spec);
+        Cipher decEnc = Cipher.getInstance("AES/ECB/NoPadding");
+        decEnc.init(Cipher.ENCRYPT_MODE, spec);
+        Cipher dec = Cipher.getInstance("AES/ECB/NoPadding");
+        dec.init(Cipher.DECRYPT_MODE, spec);
+        
+        synchronized (encryptLock) {
+            encryptCipher = enc;
+            System.arraycopy(clientNonce, 0, encryptIv, 0, AES_BLOCK_SIZE);
+        }
+        synchronized (decryptLock) {
+            decryptEncCipher = decEnc;
+            decryptCipher = dec;
+            System.arraycopy(serverNonce, 0, decryptIv, 0, AES_BLOCK_SIZE);
+            Arrays.fill(decryptHistory, (byte) 0);
+            good = 0;
+            late = 0;
+            lost = 0;
+            resync = 0;
+            lastGoodMs = SystemClock.elapsedRealtime();
+        }
+        valid = true;
+    }
+    
+    /**
+     * Nuevo IV de descifrado enviado por el servidor tras pedir resincronización
+     */
+    public void setDecryptIv(byte[] serverNonce) {
+        if (serverNonce.length != AES_BLOCK_SIZE) return;
+        synchronized (decryptLock) {
+            System.arraycopy(serverNonce, 0, decryptIv, 0, AES_BLOCK_SIZE);
+            resync++;
+            lastGoodMs = SystemClock.elapsedRealtime();
+        }
+    }
+    
+    /**
+     * Copia del IV de cifrado, para responder a una petición de resincronización
+     */
+    public byte[] getEncryptIv() {
+        synchronized (encryptLock) {
+            return encryptIv.clone();
+        }
+    }
+    
+    public boolean isValid() {
+        return valid;
+    }
+    
+    /**
+     * Cifrar plain[offset, offset + length) en out[outOffset], que necesita
+     * length + HEADER_SIZE bytes. Devuelve la longitud cifrada.
+     */
+    public int encrypt(byte[] plain, int offset, int length, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        synchronized (encryptLock) {
+            if (!valid) {
+                throw new GeneralSecurityException("CryptState sin clave");
+            }
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                if (++encryptIv[i] != 0) break;
+            }
+            ocbEncrypt(plain, offset, length, out, outOffset + HEADER_SIZE);
+            out[outOffset] = encryptIv[0];
+            out[outOffset + 1] = encTag[0];
+            out[outOffset + 2] = encTag[1];
+            out[outOffset + 3] = encTag[2];
+            return length + HEADER_SIZE;
+        }
+    }
+    
+    /**
+     * Descifrar un paquete UDP en plain[plainOffset]. Devuelve la longitud en
+     * claro o -1 si el paquete es inválido, repetido o demasiado antiguo.
+     */
+    public int decrypt(byte[] source, int offset, int length, byte[] plain, int plainOffset)
+            throws GeneralSecurityException {
+        if (length < HEADER_SIZE || !valid) return -1;
+        
+        synchronized (decryptLock) {
+            int plainLength = length - HEADER_SIZE;
+            System.arraycopy(decryptIv, 0, savedIv, 0, AES_BLOCK_SIZE);
+            int ivByte = source[offset] & 0xFF;
+            int current = decryptIv[0] & 0xFF;
+            boolean restore = false;
+            int lateNow = 0;
+            int lostNow = 0;
+            
+            if (((current + 1) & 0xFF) == ivByte) {
+                // En orden
+                if (ivByte > current) {
+                    decryptIv[0] = (byte) ivByte;
+                } else if (ivByte < current) {
+                    decryptIv[0] = (byte) ivByte;
+                    incrementIv(decryptIv);
+                } else {
+                    return -1;
+                }
+            } else {
+                // Desordenado o repetido
+                int diff = ivByte - current;
+                if (diff > 128) {
+                    diff -= 256;
+                } else if (diff < -128) {
+                    diff += 256;
+                }
+                
+                if (ivByte < current && diff > -30 && diff < 0) {
+                    // Tardío sin vuelta
+                    lateNow = 1;
+                    lostNow = -1;
+                    decryptIv[0] = (byte) ivByte;
+                    restore = true;
+                } else if (ivByte > current && diff > -30 && diff < 0) {
+                    // Tardío de la vuelta anterior
+                    lateNow = 1;
+                    lostNow = -1;
+                    decryptIv[0] = (byte) ivByte;
+                    decrementIv(decryptIv);
+                    restore = true;
+                } else if (ivByte > current && diff > 0) {
+                    // Se han perdido algunos paquetes
+                    lostNow = ivByte - current - 1;
+                    decryptIv[0] = (byte) ivByte;
+                } else if (ivByte < current && diff > 0) {
+                    // Perdidos y con vuelta
+                    lostNow = 256 - current + ivByte - 1;
+                    decryptIv[0] = (byte) ivByte;
+                    incrementIv(decryptIv);
+                } else {
+                    return -1;
+                }
+                
+                if (decryptHistory[decryptIv[0] & 0xFF] == decryptIv[1]) {
+                    // Repetición
+                    System.arraycopy(savedIv, 0, decryptIv, 0, AES_BLOCK_SIZE);
+                    return -1;
+                }
+            }
+            
+            boolean ok = ocbDecrypt(source, offset + HEADER_SIZE, plainLength, plain, plainOffset);
+            if (!ok || decTag[0] != source[offset + 1] || decTag[1] != source[offset + 2]
+                    || decTag[2] != source[offset + 3]) {
+                System.arraycopy(savedIv, 0, decryptIv, 0, AES_BLOCK_SIZE);
+                return -1;
+            }
+            
+            decryptHistory[decryptIv[0] & 0xFF] = decryptIv[1];
+            if (restore) {
+                System.arraycopy(savedIv, 0, decryptIv, 0, AES_BLOCK_SIZE);
+            }
+            
+            good++;
+            late += lateNow;
+            lost += lostNow;
+            lastGoodMs = SystemClock.elapsedRealtime();
+            return plainLength;
+        }
+    }
+    
+    /**
+     * Indica si hay que pedir un nuevo nonce al servidor: no se ha descifrado
+     * nada en RESYNC_TIMEOUT_MS y no se ha pedido en ese tiempo. Marca la
+     * petición como enviada.
+     */
+    public boolean checkResyncNeeded(long nowMs) {
+        synchronized (decryptLock) {
+            if (!valid || nowMs - lastGoodMs < RESYNC_TIMEOUT_MS
+                    || nowMs - lastResyncRequestMs < RESYNC_TIMEOUT_MS) {
+                return false;
+            }
+            lastResyncRequestMs = nowMs;
+            return true;
+        }
+    }
+    
+    public int getGood() { return good; }
+    public int getLate() { return late; }
+    public int getLost() { return lost; }
+    public int getResync() { return resync; }
+    public long getLastGoodMs() { return lastGoodMs; }
+    
+    @Override
+    public String toString() {
+        return "good=" + good + " late=" + late + " lost=" + lost + " resync=" + resync;
+    }
+    
+    // ==================== OCB2 ====================
+    
+    private void ocbEncrypt(byte[] plain, int p, int len, byte[] out, int o)
+            throws GeneralSecurityException {
+        aes(encryptCipher, encryptIv, 0, encDelta, 0);
+        Arrays.fill(encChecksum, (byte) 0);
+        
+        while (len > AES_BLOCK_SIZE) {
+            // Contramedida de la sección 9 de https://eprint.iacr.org/2019/311:
+            // el penúltimo bloque no puede ser todo ceros salvo el último byte
+            boolean flipABit = false;
+            if (len - AES_BLOCK_SIZE <= AES_BLOCK_SIZE) {
+                int sum = 0;
+                for (int i = 0; i < AES_BLOCK_SIZE - 1; i++) {
+                    sum |= plain[p + i];
+                }
+                flipABit = sum == 0;
+            }
+            
+            s2(encDelta);
+            xor(encTmp, 0, encDelta, plain, p);
+            if (flipABit) {
+                encTmp[0] ^= 1;
+            }
+            aes(encryptCipher, encTmp, 0, encTmp, 0);
+            xor(out, o, encDelta, encTmp, 0);
+            xor(encChecksum, 0, encChecksum, plain, p);
+            if (flipABit) {
+                encChecksum[0] ^= 1;
+            }
+            len -= AES_BLOCK_SIZE;
+            p += AES_BLOCK_SIZE;
+            o += AES_BLOCK_SIZE;
+        }
+        
+        s2(encDelta);
+        Arrays.fill(encTmp, (byte) 0);
+        putBitLength(encTmp, len);
+        xor(encTmp, 0, encTmp, encDelta, 0);
+        aes(encryptCipher, encTmp, 0, encPad, 0);
+        System.arraycopy(plain, p, encTmp, 0, len);
+        System.arraycopy(encPad, len, encTmp, len, AES_BLOCK_SIZE - len);
+        xor(encChecksum, 0, encChecksum, encTmp, 0);
+        xor(encTmp, 0, encPad, encTmp, 0);
+        System.arraycopy(encTmp, 0, out, o, len);
+        
+        s3(encDelta);
+        xor(encTmp, 0, encDelta, encChecksum, 0);
+        aes(encryptCipher, encTmp, 0, encTag, 0);
+    }
+    
+    private boolean ocbDecrypt(byte[] in, int i, int len, byte[] plain, int p)
+            throws GeneralSecurityException {
+        aes(decryptEncCipher, decryptIv, 0, decDelta, 0);
+        Arrays.fill(decChecksum, (byte) 0);
+        
+        while (len > AES_BLOCK_SIZE) {
+            s2(decDelta);
+            xor(decTmp, 0, decDelta, in, i);
+            aes(decryptCipher, decTmp, 0, decTmp, 0);
+            xor(plain, p, decDelta, decTmp, 0);
+            xor(decChecksum, 0, decChecksum, plain, p);
+            len -= AES_BLOCK_SIZE;
+            i += AES_BLOCK_SIZE;
+            p += AES_BLOCK_SIZE;
+        }
+        
+        s2(decDelta);
+        Arrays.fill(decTmp, (byte) 0);
+        putBitLength(decTmp, len);
+        xor(decTmp, 0, decTmp, decDelta, 0);
+        aes(decryptEncCipher, decTmp, 0, decPad, 0);
+        Arrays.fill(decTmp, (byte) 0);
+        System.arraycopy(in, i, decTmp, 0, len);
+        xor(decTmp, 0, decTmp, decPad, 0);
+        xor(decChecksum, 0, decChecksum, decTmp, 0);
+        System.arraycopy(decTmp, 0, plain, p, len);
+        
+        // Ataque XEX*: el último bloque descifrado no puede coincidir con delta
+        boolean attack = true;
+        for (int k = 0; k < AES_BLOCK_SIZE - 1; k++) {
+            if (decTmp[k] != decDelta[k]) {
+                attack = false;
+                break;
+            }
+        }
+        
+        s3(decDelta);
+        xor(decTmp, 0, decDelta, decChecksum, 0);
+        aes(decryptEncCipher, decTmp, 0, decTag, 0);
+        return !attack;
+    }
+    
+    private static void aes(Cipher cipher, byte[] in, int inOffset, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        cipher.doFinal(in, inOffset, AES_BLOCK_SIZE, out, outOffset);
+    }
+    
+    private static void xor(byte[] dst, int d, byte[] a, byte[] b, int bOffset) {
+        for (int k = 0; k < AES_BLOCK_SIZE; k++) {
+            dst[d + k] = (byte) (a[k] ^ b[bOffset + k]);
+        }
+    }
+    
+    /**
+     * Longitud en bits, big-endian, en los 4 últimos bytes del bloque
+     */
+    private static void putBitLength(byte[] block, int len) {
+        int bits = len * 8;
+        block[12] = (byte) (bits >>> 24);
+        block[13] = (byte) (bits >>> 16);
+        block[14] = (byte) (bits >>> 8);
+        block[15] = (byte) bits;
+    }
+    
+    /**
+     * Multiplicar por x en GF(2^128)
+     */
+    private static void s2(byte[] block) {
+        int carry = (block[0] & 0x80) != 0 ? 1 : 0;
+        for (int k = 0; k < AES_BLOCK_SIZE - 1; k++) {
+            block[k] = (byte) ((block[k] << 1) | ((block[k + 1] & 0xFF) >>> 7));
+        }
+        block[AES_BLOCK_SIZE - 1] = (byte) ((block[AES_BLOCK_SIZE - 1] << 1) ^ (carry * 0x87));
+    }
+    
+    /**
+     * Multiplicar por x + 1 en GF(2^128)
+     */
+    private static void s3(byte[] block) {
+        int carry = (block[0] & 0x80) != 0 ? 1 : 0;
+        for (int k = 0; k < AES_BLOCK_SIZE - 1; k++) {
+            block[k] ^= (byte) ((block[k] << 1) | ((block[k + 1] & 0xFF) >>> 7));
+        }
+        block[AES_BLOCK_SIZE - 1] ^= (byte) ((block[AES_BLOCK_SIZE - 1] << 1) ^ (carry * 0x87));
+    }
+    
+    private static void incrementIv(byte[] iv) {
+        for (int k = 1; k < AES_BLOCK_SIZE; k++) {
+            if (++iv[k] != 0) break;
+        }
+    }
+    
+    private static void decrementIv(byte[] iv) {
+        for (int k = 1; k < AES_BLOCK_SIZE; k++) {
+            if (iv[k]-- != 0) break;
+        }
+    }
+}
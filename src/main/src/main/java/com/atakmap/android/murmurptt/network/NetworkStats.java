@@ -0,0 +1,149 @@
+package com.atakmap.android.murmurptt.network;
+
+/**
+ * Estimaciones de red de una conexión a partir de los pings.
+ *
+ * RTT suavizado y su variación por ruta, como en RFC 6298, a partir de los
+ * pings UDP y TCP. El jitter se estima aparte con la diferencia entre RTT
+ * consecutivos (RFC 3550), sin la semilla rtt/2 de la variación de RFC 6298.
+ * La línea base del RTT (el mínimo, con una deriva lenta hacia arriba para
+ * seguir los cambios de ruta) mide el retardo que añaden las colas del
+ * camino. La pérdida de subida sale de los contadores del
+ * servidor que llegan en la respuesta al ping TCP y la de bajada de los del
+ * CryptState local; ambas se calculan sobre el intervalo entre pings y se
+ * suavizan.
+ */
+public class NetworkStats {
+    
+    private static final double RTT_ALPHA = 1.0 / 8;
+    private static final double RTT_BETA = 1.0 / 4;
+    private static final double LOSS_ALPHA = 1.0 / 4;
+    private static final double BASELINE_DRIFT = 1.0 / 64;
+    private static final double JITTER_ALPHA = 1.0 / 8;
+    // Muestras necesarias antes de publicar el jitter
+    private static final int MIN_JITTER_SAMPLES = 4;
+    
+    private static class Rtt {
+        double srtt = -1;
+        double rttvar = 0;
+        double baseline = -1;
+        double jitter = 0;
+        double last = -1;
+        long samples = 0;
+        
+        void add(double rtt) {
+            if (last >= 0) {
+                jitter += (Math.abs(rtt - last) - jitter) * JITTER_ALPHA;
+            }
+            last = rtt;
+            if (srtt < 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                rttvar += (Math.abs(srtt - rtt) - rttvar) * RTT_BETA;
+                srtt += (rtt - srtt) * RTT_ALPHA;
+            }
+            if (baseline < 0 || rtt < baseline) {
+                baseline = rtt;
+            } else {
+                baseline += (rtt - baseline) * BASELINE_DRIFT;
+            }
+            samples++;
+        }
+    }
+    
+    private final Rtt udp = new Rtt();
+    private final Rtt tcp = new Rtt();
+    
+    private double uplinkLossPercent = 0;
+    private double downlinkLossPercent = 0;
+    private int lastRemoteGood = -1;
+    private int lastRemoteLost = 0;
+    private int lastLocalGood = -1;
+    private int lastLocalLost = 0;
+    
+    public synchronized void onUdpRtt(long rttMs) {
+        udp.add(rttMs);
+    }
+    
+    public synchronized void onTcpRtt(long rttMs) {
+        tcp.add(rttMs);
+    }
+    
+    /**
+     * Contadores del servidor para nuestros paquetes UDP (respuesta al ping TCP)
+     */
+    public synchronized void onRemoteCounters(int good, int lost) {
+        if (lastRemoteGood >= 0) {
+            uplinkLossPercent = smoothLoss(uplinkLossPercent,
+                good - lastRemoteGood, lost - lastRemoteLost);
+        }
+        lastRemoteGood = good;
+        lastRemoteLost = lost;
+    }
+    
+    /**
+     * Contadores locales del CryptState para los paquetes UDP recibidos
+     */
+    public synchronized void onLocalCounters(int good, int lost) {
+        if (lastLocalGood >= 0) {
+            downlinkLossPercent = smoothLoss(downlinkLossPercent,
+                good - lastLocalGood, lost - lastLocalLost);
+        }
+        lastLocalGood = good;
+        lastLocalLost = lost;
+    }
+    
+    private static double smoothLoss(double current, int good, int lost) {
+        // Sin tráfico en el intervalo (o contadores reiniciados) no hay medida
+        if (good < 0 || lost < 0 || good + lost == 0) return current;
+        double sample = 100.0 * lost / (good + lost);
+        return current + (sample - current) * LOSS_ALPHA;
+    }
+    
+    /**
+     * RTT suavizado de la ruta de voz indicada, o -1 si aún no se ha medido
+     */
+    public synchronized int getRttMs(boolean udpPath) {
+        Rtt rtt = udpPath && udp.samples > 0 ? udp : tcp;
+        return rtt.srtt < 0 ? -1 : (int) Math.round(rtt.srtt);
+    }
+    
+    /**
+     * Jitter estimado de un sentido de la ruta indicada: la mitad de la
+     * variación entre RTT consecutivos. 0 hasta tener MIN_JITTER_SAMPLES pings.
+     */
+    public synchronized double getJitterMs(boolean udpPath) {
+        Rtt rtt = udpPath && udp.samples > 0 ? udp : tcp;
+        return rtt.samples < MIN_JITTER_SAMPLES ? 0 : rtt.jitter / 2;
+    }
+    
+    /**
+     * Línea base del RTT de la ruta indicada (retardo de propagación), o -1
+     */
+    public synchronized int getBaselineRttMs(boolean udpPath) {
+        Rtt rtt = udpPath && udp.samples > 0 ? udp : tcp;
+        return rtt.baseline < 0 ? -1 : (int) Math.round(rtt.baseline);
+    }
+    
+    /**
+     * Retardo de cola: RTT suavizado por encima de la línea base (0 si no se ha medido)
+     */
+    public synchronized double getQueuingDelayMs(boolean udpPath) {
+        Rtt rtt = udpPath && udp.samples > 0 ? udp : tcp;
+        return rtt.srtt < 0 ? 0 : Math.max(0, rtt.srtt - rtt.baseline);
+    }
+    
+    public synchronized double getUdpRttMs() { return udp.srtt; }
+    public synchronized double getUdpRttVarMs() { return udp.rttvar; }
+    public synchronized double getTcpRttMs() { return tcp.srtt; }
+    public synchronized double getTcpRttVarMs() { return tcp.rttvar; }
+    public synchronized double getUplinkLossPercent() { return uplinkLossPercent; }
+    public synchronized double getDownlinkLossPercent() { return downlinkLossPercent; }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("udp=%.0f±%.0fms tcp=%.0f±%.0fms pérdida subida=%.1f%% bajada=%.1f%%",
+            udp.srtt, udp.rttvar, tcp.srtt, tcp.rttvar, uplinkLossPercent, downlinkLossPercent);
+    }
+}
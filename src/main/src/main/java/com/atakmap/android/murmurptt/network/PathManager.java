@@ -0,0 +1,140 @@
+package com.atakmap.android.murmurptt.network;
+
+import android.util.Log;
+
+/**
+ * Selección de la ruta de voz de una conexión (UDP o túnel TCP) según los
+ * pings UDP.
+ *
+ * La conexión envía un ping UDP cada PING_INTERVAL_MS desde el thread de E/S
+ * y lo notifica con onPingSent(); las respuestas llegan a onPong(). Si pasan FAIL_AFTER_MS sin respuesta la voz pasa al
+ * túnel TCP. Para volver a UDP hacen falta RECOVER_PONGS respuestas seguidas
+ * (solo una la primera vez), lo que evita oscilar con un enlace intermitente.
+ * Registra los cambios de ruta y el tiempo pasado en cada una.
+ */
+public class PathManager {
+    
+    private static final String TAG = "PathManager";
+    
+    public static final long PING_INTERVAL_MS = 250;
+    public static final long FAIL_AFTER_MS = 750;
+    private static final int RECOVER_PONGS = 4;
+    
+    public enum Path { TCP, UDP }
+    
+    private final String name;
+    
+    private volatile Path path = Path.TCP;
+    private long pathSinceMs;
+    private long udpTimeMs = 0;
+    private long tcpTimeMs = 0;
+    private int switchesToUdp = 0;
+    private int switchesToTcp = 0;
+    
+    private long lastPongMs = -1;
+    private long lastPingMs = -1;
+    private int consecutivePongs = 0;
+    private boolean everFailed = false;
+    
+    public PathManager(String name, long nowMs) {
+        this.name = name;
+        this.pathSinceMs = nowMs;
+    }
+    
+    /**
+     * La voz debe ir por UDP
+     */
+    public boolean isUdp() {
+        return path == Path.UDP;
+    }
+    
+    public Path getPath() {
+        return path;
+    }
+    
+    /**
+     * Ping UDP enviado. Comprueba si UDP ha dejado de responder.
+     */
+    public synchronized void onPingSent(long nowMs) {
+        lastPingMs = nowMs;
+        long silence = nowMs - (lastPongMs >= 0 ? lastPongMs : pathSinceMs);
+        if (path == Path.TCP && silence > FAIL_AFTER_MS) {
+            // Las respuestas para volver a UDP deben ser seguidas
+            consecutivePongs = 0;
+        } else if (path == Path.UDP && silence > FAIL_AFTER_MS) {
+            everFailed = true;
+            consecutivePongs = 0;
+            switchTo(Path.TCP, nowMs, "sin respuesta UDP en " + silence + " ms");
+        }
+    }
+    
+    /**
+     * Respuesta a un ping UDP recibida
+     */
+    public synchronized void onPong(long nowMs, long rttMs) {
+        lastPongMs = nowMs;
+        consecutivePongs++;
+        int required = everFailed ? RECOVER_PONGS : 1;
+        if (path == Path.TCP && consecutivePongs >= required) {
+            switchTo(Path.UDP, nowMs, consecutivePongs + " respuestas UDP, rtt " + rttMs + " ms");
+        }
+    }
+    
+    /**
+     * UDP ya no es utilizable (canal cerrado o sin clave)
+     */
+    public synchronized void onUdpUnavailable(long nowMs) {
+        consecutivePongs = 0;
+        if (path == Path.UDP) {
+            switchTo(Path.TCP, nowMs, "canal UDP no disponible");
+        }
+    }
+    
+    private void switchTo(Path newPath, long nowMs, String reason) {
+        accumulate(nowMs);
+        path = newPath;
+        if (newPath == Path.UDP) {
+            switchesToUdp++;
+        } else {
+            switchesToTcp++;
+        }
+        Log.i(TAG, name + ": voz por " + newPath + " (" + reason + ")");
+    }
+    
+    private void accumulate(long nowMs) {
+        long elapsed = nowMs - pathSinceMs;
+        if (path == Path.UDP) {
+            udpTimeMs += elapsed;
+        } else {
+            tcpTimeMs += elapsed;
+        }
+        pathSinceMs = nowMs;
+    }
+    
+    /**
+     * Tiempo total con la voz por UDP hasta nowMs
+     */
+    public synchronized long getUdpTimeMs(long nowMs) {
+        return udpTimeMs + (path == Path.UDP ? nowMs - pathSinceMs : 0);
+    }
+    
+    /**
+     * Tiempo total con la voz por el túnel TCP hasta nowMs
+     */
+    public synchronized long getTcpTimeMs(long nowMs) {
+        return tcpTimeMs + (path == Path.TCP ? nowMs - pathSinceMs : 0);
+    }
+    
+    public synchronized int getSwitchesToUdp() { return switchesToUdp; }
+    public synchronized int getSwitchesToTcp() { return switchesToTcp; }
+    public synchronized long getLastPongMs() { return lastPongMs; }
+    public synchronized long getLastPingMs() { return lastPingMs; }
+    
+    /**
+     * Resumen de rutas hasta nowMs
+     */
+    public synchronized String describe(long nowMs) {
+        return String.format("ruta=%s udp=%ds tcp=%ds cambios a udp=%d a tcp=%d",
+            path, getUdpTimeMs(nowMs) / 1000, getTcpTimeMs(nowMs) / 1000, switchesToUdp, switchesToTcp);
+    }
+}
@@ -0,0 +1,134 @@
+package com.atakmap.android.murmurptt.network;
+
+import android.util.SparseArray;
+
+import com.atakmap.android.murmurptt.model.MurmurUser;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Vista inmutable y versionada de los usuarios y canales de un servidor.
+ *
+ * La conexión publica una nueva tras cada lote de mensajes que cambia el
+ * estado, de forma atómica (un campo volatile), así que cualquier thread lee
+ * una vista coherente sin bloqueos ni copias. Los MurmurUser de la vista son
+ * copias que nadie modifica después de publicarla, salvo la actividad de voz
+ * (isSpeaking), que comparten con el usuario vivo; no deben modificarse. Si
+ * la versión no ha cambiado, nada ha cambiado: la UI puede saltarse el
+ * refresco. Los usuarios sin cambios y la parte de canales se comparten con
+ * la vista anterior.
+ */
+public final class ServerSnapshot {
+    
+    public static final ServerSnapshot EMPTY = new ServerSnapshot(0,
+        Collections.<MurmurUser>emptyList(), new SparseArray<MurmurUser>(),
+        new SparseArray<List<MurmurUser>>(), Collections.<Channel>emptyList(), null);
+    
+    /**
+     * Canal de la vista
+     */
+    public static final class Channel {
+        private final int id;
+        private final int parentId;
+        private final String name;
+        private final String path;
+        
+        Channel(int id, int parentId, String name, String path) {
+            this.id = id;
+            this.parentId = parentId;
+            this.name = name;
+            this.path = path;
+        }
+        
+        public int getId() { return id; }
+        public int getParentId() { return parentId; }
+        public String getName() { return name; }
+        public String getPath() { return path; }
+        
+        @Override
+        public String toString() {
+            return path + " (" + id + ")";
+        }
+    }
+    
+    private final long version;
+    private final List<MurmurUser> users;
+    private final SparseArray<MurmurUser> usersBySession;
+    private final SparseArray<List<MurmurUser>> usersByChannel;
+    private final List<Channel> channels;
+    private final SparseArray<Channel> channelsById;
+    private final HashMap<String, Channel> channelsByPath;
+    
+    /**
+     * usersByChannel: pertenencia copiada del índice de ChannelTree, con las
+     * mismas copias que users. previous: vista anterior cuyos índices de
+     * canales se reutilizan si la lista de canales es la misma.
+     */
+    ServerSnapshot(long version, List<MurmurUser> users, SparseArray<MurmurUser> usersBySession,
+                   SparseArray<List<MurmurUser>> usersByChannel, List<Channel> channels,
+                   ServerSnapshot previous) {
+        this.version = version;
+        this.users = Collections.unmodifiableList(users);
+        this.usersBySession = usersBySession;
+        this.usersByChannel = usersByChannel;
+        
+        if (previous != null && previous.channels == channels) {
+            this.channels = previous.channels;
+            this.channelsById = previous.channelsById;
+            this.channelsByPath = previous.channelsByPath;
+        } else {
+            this.channels = Collections.unmodifiableList(channels);
+            this.channelsById = new SparseArray<>(channels.size());
+            this.channelsByPath = new HashMap<>(channels.size() * 2);
+            for (Channel channel : channels) {
+                channelsById.put(channel.id, channel);
+                channelsByPath.put(channel.path, channel);
+            }
+        }
+    }
+    
+    /**
+     * Versión de la vista; crece con cada publicación
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    public List<MurmurUser> getUsers() {
+        return users;
+    }
+    
+    public MurmurUser getUser(int sessionId) {
+        return usersBySession.get(sessionId);
+    }
+    
+    /**
+     * Usuarios de un canal (lista vacía si no hay)
+     */
+    public List<MurmurUser> getUsersInChannel(int channelId) {
+        List<MurmurUser> list = usersByChannel.get(channelId);
+        return list != null ? list : Collections.<MurmurUser>emptyList();
+    }
+    
+    public List<Channel> getChannels() {
+        return channels;
+    }
+    
+    public Channel getChannel(int channelId) {
+        return channelsById.get(channelId);
+    }
+    
+    /**
+     * Canal por ruta completa ("Root/Ops/Alpha")
+     */
+    public Channel findChannel(String path) {
+        return channelsByPath.get(path);
+    }
+    
+    @Override
+    public String toString() {
+        return "v" + version + " usuarios=" + users.size() + " canales=" + channels.size();
+    }
+}
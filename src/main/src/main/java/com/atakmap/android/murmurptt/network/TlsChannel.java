@@ -0,0 +1,664 @@
+package com.atakmap.android.murmurptt.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Canal TLS no bloqueante sobre un SocketChannel con SSLEngine.
+ *
+ * Todo el estado de E/S se usa solo desde el thread del ControlTransport;
+ * send() y close() pueden llamarse desde cualquier thread. Las tareas
+ * delegadas del SSLEngine se ejecutan en threads auxiliares del transporte
+ * para no detener al resto de canales; mientras duran el canal no atiende
+ * su socket. Aquí se enmarcan
+ * los mensajes Mumble: tipo (2 bytes), longitud (4 bytes) y datos. Los
+ * mensajes recibidos se entregan como vistas sobre un único buffer de
+ * recepción reutilizable, sin copiarlos, y una longitud mayor que el máximo
+ * configurado cierra el canal.
+ *
+ * Los mensajes salientes se copian a un buffer de envío compartido; el thread
+ * de E/S cifra de una vez todo lo acumulado (varios mensajes por registro
+ * TLS) y lo escribe en el socket con una sola escritura por vaciado.
+ */
+public class TlsChannel {
+    
+    private static final String TAG = "TlsChannel";
+    static final int HEADER_SIZE = 6;
+    // Límite de bytes pendientes de envío; por encima send() falla
+    public static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    private static final int INITIAL_OUT_BUFFER_SIZE = 16 * 1024;
+    // Registros TLS que caben en el buffer de red de salida
+    private static final int RECORDS_PER_FLUSH = 4;
+    // Capacidad del buffer de recepción, en buffers de aplicación TLS, por
+    // encima de la cual se libera al quedar vacío
+    private static final int APP_IN_SHRINK_FACTOR = 4;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    
+    private final ControlTransport transport;
+    private final SSLEngine engine;
+    private final SSLSessionContext sessions;
+    private final ControlTransport.Handler handler;
+    
+    private SocketChannel socket;
+    private SelectionKey key;
+    private volatile InetSocketAddress remoteAddress;
+    // Plazo de conexión, desde open(): incluye resolución DNS, TCP y handshake
+    private final long deadlineMs;
+    
+    // Buffers de E/S: datos cifrados de red y datos de aplicación recibidos
+    private final ByteBuffer netIn;
+    private final ByteBuffer netOut;
+    private final int packetBufferSize;
+    private final int appBufferSize;
+    private ByteBuffer appIn;
+    // Un mensaje recibido mayor cierra el canal con ProtocolException antes
+    // de reservar memoria para él
+    private final int maxMessageSize;
+    
+    // Mensajes salientes: los productores escriben en pendingOut y el thread
+    // de E/S lo intercambia por sendingOut para cifrarlo entero
+    private final Object outLock = new Object();
+    private ByteBuffer pendingOut = ByteBuffer.allocate(INITIAL_OUT_BUFFER_SIZE);
+    private ByteBuffer sendingOut = ByteBuffer.allocate(INITIAL_OUT_BUFFER_SIZE);
+    private int pendingMessages = 0;
+    private volatile int sendingBytes = 0;
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    
+    // Métricas de escritura
+    private int maxQueueDepth = 0;
+    private volatile long flushes = 0;
+    private volatile long flushedBytes = 0;
+    private volatile long flushedMessages = 0;
+    
+    private volatile boolean established = false;
+    private volatile boolean closed = false;
+    // Tareas delegadas del SSLEngine en curso (solo thread de E/S)
+    private boolean runningTasks = false;
+    
+    // Fases de la conexión (SystemClock.elapsedRealtime)
+    private final long openedMs = SystemClock.elapsedRealtime();
+    private volatile long resolvedMs = 0;
+    private volatile long connectedMs = 0;
+    private volatile long establishedMs = 0;
+    // Sesiones en caché al empezar el handshake, para detectar la reanudación
+    private final ArrayList<byte[]> cachedSessionIds = new ArrayList<>();
+    private volatile boolean resumed = false;
+    
+    TlsChannel(ControlTransport transport, SSLEngine engine, SSLSessionContext sessions,
+               int maxMessageSize, long deadlineMs, ControlTransport.Handler handler) {
+        this.transport = transport;
+        this.deadlineMs = deadlineMs;
+        this.engine = engine;
+        this.sessions = sessions;
+        this.maxMessageSize = maxMessageSize;
+        this.handler = handler;
+        
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.packetBufferSize = session.getPacketBufferSize();
+        this.netOut = ByteBuffer.allocate(packetBufferSize * RECORDS_PER_FLUSH);
+        this.netOut.flip();
+        this.sendingOut.flip();
+        this.appBufferSize = session.getApplicationBufferSize();
+        this.appIn = ByteBuffer.allocate(appBufferSize);
+    }
+    
+    /**
+     * Encolar un mensaje Mumble para su envío. Copia cabecera y datos al
+     * buffer de envío, sin asignar memoria salvo para ampliarlo.
+     */
+    public void send(int type, byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Canal de control cerrado");
+        }
+        int size = HEADER_SIZE + length;
+        
+        synchronized (outLock) {
+            int needed = pendingOut.position() + size;
+            if (needed > MAX_QUEUED_BYTES) {
+                throw new IOException("Cola de envío llena: " + pendingOut.position() + " bytes");
+            }
+            if (needed > pendingOut.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_QUEUED_BYTES,
+                    Math.max(needed, pendingOut.capacity() * 2)));
+                pendingOut.flip();
+                bigger.put(pendingOut);
+                pendingOut = bigger;
+            }
+            pendingOut.putShort((short) type).putInt(length).put(data, offset, length);
+            pendingMessages++;
+            if (pendingMessages > maxQueueDepth) {
+                maxQueueDepth = pendingMessages;
+            }
+        }
+        if (writeRequested.compareAndSet(false, true)) {
+            transport.requestWrite(this);
+        }
+    }
+    
+    /**
+     * Cerrar el canal enviando close_notify si es posible
+     */
+    public void close() {
+        transport.execute(() -> fail(null));
+    }
+    
+    /**
+     * Tamaño máximo de un mensaje recibido
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+    
+    /**
+     * Bytes encolados que aún no se han cifrado
+     */
+    public int getQueuedBytes() {
+        synchronized (outLock) {
+            return pendingOut.position() + sendingBytes;
+        }
+    }
+    
+    /**
+     * Mensajes esperando al próximo vaciado
+     */
+    public int getQueueDepth() {
+        synchronized (outLock) {
+            return pendingMessages;
+        }
+    }
+    
+    /**
+     * Máximo de mensajes acumulados entre dos vaciados
+     */
+    public int getMaxQueueDepth() {
+        synchronized (outLock) {
+            return maxQueueDepth;
+        }
+    }
+    
+    public long getFlushes() { return flushes; }
+    public long getFlushedBytes() { return flushedBytes; }
+    
+    /**
+     * Bytes cifrados medios por escritura al socket
+     */
+    public double getBytesPerFlush() {
+        long n = flushes;
+        return n > 0 ? (double) flushedBytes / n : 0;
+    }
+    
+    /**
+     * Mensajes medios por escritura al socket
+     */
+    public double getMessagesPerFlush() {
+        long n = flushes;
+        return n > 0 ? (double) flushedMessages / n : 0;
+    }
+    
+    
+    /**
+     * Dirección resuelta del servidor (null hasta empezar a conectar)
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+    
+    public boolean isOpen() {
+        return !closed;
+    }
+    
+    public boolean isEstablished() {
+        return established && !closed;
+    }
+    
+    /**
+     * Tiempo de resolución DNS (0 si aún no ha terminado)
+     */
+    public long getResolveMs() {
+        return resolvedMs > 0 ? resolvedMs - openedMs : 0;
+    }
+    
+    /**
+     * Tiempo de conexión TCP tras resolver
+     */
+    public long getTcpConnectMs() {
+        return connectedMs > 0 ? connectedMs - resolvedMs : 0;
+    }
+    
+    /**
+     * Tiempo del handshake TLS
+     */
+    public long getHandshakeMs() {
+        return establishedMs > 0 ? establishedMs - connectedMs : 0;
+    }
+    
+    /**
+     * Instante (elapsedRealtime) en que terminó el handshake, 0 si no ha terminado
+     */
+    public long getEstablishedAtMs() {
+        return establishedMs;
+    }
+    
+    /**
+     * El handshake reanudó una sesión TLS de la caché
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+    
+    // ==================== THREAD DE E/S ====================
+    
+    void attach(SocketChannel socket, SelectionKey key, InetSocketAddress remoteAddress) {
+        this.socket = socket;
+        this.key = key;
+        this.remoteAddress = remoteAddress;
+    }
+    
+    boolean isClosed() {
+        return closed;
+    }
+    
+    void onResolved() {
+        resolvedMs = SystemClock.elapsedRealtime();
+    }
+    
+    boolean isTimedOut(long nowMs) {
+        return !established && !closed && nowMs > deadlineMs;
+    }
+    
+    void onReady(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                onConnectable();
+            }
+            // Operaciones ya seleccionadas cuando empezaron las tareas delegadas
+            if (runningTasks) return;
+            if (key.isValid() && key.isReadable()) {
+                onReadable();
+            }
+            if (key.isValid() && key.isWritable() && !runningTasks) {
+                onWritable();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+    
+    void onConnectable() throws IOException {
+        if (!socket.finishConnect()) return;
+        connectedMs = SystemClock.elapsedRealtime();
+        snapshotSessionIds();
+        key.interestOps(SelectionKey.OP_READ);
+        engine.beginHandshake();
+        handshake();
+    }
+    
+    void onWriteRequested() {
+        writeRequested.set(false);
+        // Antes del handshake o durante tareas delegadas los mensajes esperan en la cola
+        if (closed || !established || runningTasks) return;
+        try {
+            writePending();
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+    
+    void fail(Exception cause) {
+        if (closed) return;
+        closed = true;
+        
+        if (socket != null) {
+            // close_notify en cierres locales y por violación del protocolo
+            if (established && (cause == null || cause instanceof ProtocolException)) {
+                try {
+                    engine.closeOutbound();
+                    netOut.clear();
+                    engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    flush();
+                } catch (IOException e) {
+                    // Cierre de mejor esfuerzo
+                }
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error cerrando socket", e);
+            }
+        }
+        
+        transport.onChannelClosed(this);
+        handler.onClosed(this, cause);
+    }
+    
+    private void onReadable() throws IOException {
+        int read = socket.read(netIn);
+        if (read < 0) {
+            throw new EOFException("Conexión cerrada por el servidor");
+        }
+        if (!established) {
+            handshake();
+            return;
+        }
+        unwrapAll();
+    }
+    
+    private void onWritable() throws IOException {
+        if (!established) {
+            if (flush()) {
+                handshake();
+            }
+            return;
+        }
+        writePending();
+    }
+    
+    private void handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP: {
+                    if (!flush()) {
+                        updateInterest();
+                        return;
+                    }
+                    netOut.clear();
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("Handshake cerrado");
+                    }
+                    break;
+                }
+                case NEED_UNWRAP: {
+                    if (!flush()) {
+                        updateInterest();
+                        return;
+                    }
+                    netIn.flip();
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    netIn.compact();
+                    SSLEngineResult.Status status = result.getStatus();
+                    if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        // Esperar más datos del servidor
+                        updateInterest();
+                        return;
+                    }
+                    if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        growAppIn();
+                    } else if (status == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("Handshake cerrado por el servidor");
+                    }
+                    break;
+                }
+                case NEED_TASK: {
+                    runDelegatedTasks();
+                    return;
+                }
+                default: {
+                    if (!flush()) {
+                        updateInterest();
+                        return;
+                    }
+                    if (!established) {
+                        establishedMs = SystemClock.elapsedRealtime();
+                        resumed = isCachedSession(engine.getSession().getId());
+                        established = true;
+                        handler.onEstablished(this);
+                        if (closed) return;
+                        // Datos de aplicación llegados junto al final del handshake
+                        unwrapAll();
+                        writePending();
+                    }
+                    updateInterest();
+                    return;
+                }
+            }
+        }
+    }
+    
+    private void snapshotSessionIds() {
+        cachedSessionIds.clear();
+        if (sessions == null) return;
+        Enumeration<byte[]> ids = sessions.getIds();
+        while (ids.hasMoreElements()) {
+            cachedSessionIds.add(ids.nextElement());
+        }
+    }
+    
+    /**
+     * Un handshake completo crea una sesión con un ID nuevo; uno abreviado
+     * reutiliza el de la sesión que ya estaba en la caché
+     */
+    private boolean isCachedSession(byte[] id) {
+        if (id == null || id.length == 0) return false;
+        for (int i = 0; i < cachedSessionIds.size(); i++) {
+            if (Arrays.equals(cachedSessionIds.get(i), id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void unwrapAll() throws IOException {
+        boolean needTask = false;
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                SSLEngineResult.Status status = result.getStatus();
+                if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    break;
+                }
+                if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    growAppIn();
+                    continue;
+                }
+                if (status == SSLEngineResult.Status.CLOSED) {
+                    throw new EOFException("TLS cerrado por el servidor");
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    needTask = true;
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+        
+        readFrames();
+        if (needTask) {
+            // El resto de netIn se procesa al terminar las tareas
+            if (!closed) {
+                runDelegatedTasks();
+            }
+            return;
+        }
+        
+        // Mensajes de handshake posteriores (renegociación, actualización de claves)
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (!closed && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                && status != SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshake();
+        }
+    }
+    
+    /**
+     * Ejecutar las tareas delegadas del SSLEngine en los threads auxiliares del
+     * transporte. El canal deja de atender el socket hasta que terminan y
+     * continúa después en el thread de E/S.
+     */
+    private void runDelegatedTasks() {
+        if (runningTasks) return;
+        runningTasks = true;
+        updateInterest();
+        transport.executeTlsTask(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            transport.execute(this::onTasksDone);
+        });
+    }
+    
+    private void onTasksDone() {
+        runningTasks = false;
+        if (closed) return;
+        try {
+            if (established) {
+                unwrapAll();
+            } else {
+                handshake();
+            }
+            updateInterest();
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+    
+    private void readFrames() throws IOException {
+        appIn.flip();
+        byte[] buffer = appIn.array();
+        int base = appIn.arrayOffset();
+        int delivered = 0;
+        while (!closed && appIn.remaining() >= HEADER_SIZE) {
+            int start = appIn.position();
+            int type = appIn.getShort(start);
+            int size = appIn.getInt(start + 2);
+            if (size < 0 || size > maxMessageSize) {
+                throw new ProtocolException("Mensaje tipo " + type + " de " + size
+                    + " bytes fuera de límites (máx " + maxMessageSize + ")");
+            }
+            if (appIn.remaining() < HEADER_SIZE + size) {
+                break;
+            }
+            
+            appIn.position(start + HEADER_SIZE + size);
+            handler.onMessage(this, type, buffer, base + start + HEADER_SIZE, size);
+            delivered++;
+        }
+        if (delivered > 0 && !closed) {
+            handler.onMessagesProcessed(this);
+        }
+        
+        if (appIn.position() == 0) {
+            // Nada consumido: evitar copiar un mensaje parcial en cada lectura
+            appIn.position(appIn.limit());
+            appIn.limit(appIn.capacity());
+        } else if (!appIn.hasRemaining() && appIn.capacity() > appBufferSize * APP_IN_SHRINK_FACTOR) {
+            // Liberar el buffer ampliado por un mensaje grande
+            appIn = ByteBuffer.allocate(appBufferSize);
+        } else {
+            appIn.compact();
+        }
+    }
+    
+    private void writePending() throws IOException {
+        if (!flush()) {
+            updateInterest();
+            return;
+        }
+        while (true) {
+            // Cifrar lo acumulado llenando el buffer de red con varios registros
+            netOut.clear();
+            while (netOut.remaining() >= packetBufferSize) {
+                if (!sendingOut.hasRemaining() && !swapPending()) break;
+                SSLEngineResult result = engine.wrap(sendingOut, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new EOFException("TLS cerrado");
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) break;
+            }
+            netOut.flip();
+            sendingBytes = sendingOut.remaining();
+            if (!netOut.hasRemaining()) break;
+            
+            flushes++;
+            flushedBytes += netOut.remaining();
+            if (!flush()) break;
+        }
+        updateInterest();
+    }
+    
+    /**
+     * Pasar los mensajes acumulados por los productores al buffer que se cifra
+     */
+    private boolean swapPending() {
+        synchronized (outLock) {
+            if (pendingMessages == 0) return false;
+            ByteBuffer filled = pendingOut;
+            sendingOut.clear();
+            pendingOut = sendingOut;
+            sendingOut = filled;
+            sendingOut.flip();
+            flushedMessages += pendingMessages;
+            pendingMessages = 0;
+        }
+        return true;
+    }
+    
+    /**
+     * Escribir netOut en el socket. Devuelve false si el socket no admite más datos.
+     */
+    private boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (socket.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void updateInterest() {
+        if (key == null || !key.isValid()) return;
+        if (runningTasks) {
+            key.interestOps(0);
+            return;
+        }
+        
+        boolean pending = netOut.hasRemaining();
+        if (established && !pending) {
+            synchronized (outLock) {
+                pending = sendingOut.hasRemaining() || pendingMessages > 0;
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("cola=%d (máx %d) pendiente=%dB escrituras=%d bytes/escritura=%.0f mensajes/escritura=%.1f",
+            getQueueDepth(), getMaxQueueDepth(), getQueuedBytes(), flushes,
+            getBytesPerFlush(), getMessagesPerFlush());
+    }
+    
+    private void growAppIn() {
+        int capacity = Math.max(appIn.capacity() * 2, appIn.position() + appBufferSize);
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        appIn.flip();
+        bigger.put(appIn);
+        appIn = bigger;
+    }
+}
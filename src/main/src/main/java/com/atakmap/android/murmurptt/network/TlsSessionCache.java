@@ -0,0 +1,99 @@
+package com.atakmap.android.murmurptt.network;
+
+import android.net.SSLSessionCache;
+import android.util.Log;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.Enumeration;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Caché de sesiones TLS de cliente compartida por todas las conexiones.
+ *
+ * Todas las conexiones usan el mismo SSLContext y crean sus SSLEngine con el
+ * host y puerto del servidor, así que su caché de sesiones de cliente queda
+ * indexada por host:port y una reconexión reanuda la sesión (handshake
+ * abreviado, un viaje de ida y vuelta menos).
+ *
+ * La persistencia en disco es de mejor esfuerzo. Android no ofrece una API
+ * pública para asociar un SSLSessionCache a un SSLContext, solo a sus
+ * fábricas de sockets, que el transporte con SSLEngine no usa. Se intenta con
+ * el método oculto SSLSessionCache.install(); desde API 28 las restricciones
+ * de interfaces no-SDK pueden bloquearlo o hacer que no tenga efecto, y
+ * entonces la caché solo vive en memoria. Nada depende de que persista:
+ * sin ella el primer handshake tras reiniciar el servicio es completo.
+ */
+public class TlsSessionCache {
+    
+    private static final String TAG = "TlsSessionCache";
+    private static final int MAX_SESSIONS = 32;
+    private static final int SESSION_TIMEOUT_S = 24 * 60 * 60;
+    
+    private final SSLContext sslContext;
+    private final boolean persistent;
+    
+    public TlsSessionCache(SSLContext sslContext, File directory) {
+        this.sslContext = sslContext;
+        
+        SSLSessionContext sessions = sslContext.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(MAX_SESSIONS);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_S);
+        }
+        this.persistent = installPersistentCache(sslContext, directory);
+    }
+    
+    /**
+     * Intentar SSLSessionCache.install() (API oculta) por reflexión. Devuelve
+     * true si la llamada no falló, lo que no garantiza que la plataforma
+     * guarde las sesiones.
+     */
+    private static boolean installPersistentCache(SSLContext sslContext, File directory) {
+        if (directory == null) return false;
+        try {
+            SSLSessionCache cache = new SSLSessionCache(directory);
+            Method install = SSLSessionCache.class.getMethod("install",
+                SSLSessionCache.class, SSLContext.class);
+            install.invoke(null, cache, sslContext);
+            Log.i(TAG, "Caché de sesiones TLS instalada en " + directory + " (mejor esfuerzo)");
+            return true;
+        } catch (Throwable e) {
+            Log.w(TAG, "Caché de sesiones TLS solo en memoria: " + e);
+            return false;
+        }
+    }
+    
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+    
+    /**
+     * Se instaló la caché en disco (mejor esfuerzo, ver la descripción de la clase)
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+    
+    /**
+     * Sesiones en la caché en memoria
+     */
+    public int getSessionCount() {
+        SSLSessionContext sessions = sslContext.getClientSessionContext();
+        if (sessions == null) return 0;
+        int count = 0;
+        Enumeration<byte[]> ids = sessions.getIds();
+        while (ids.hasMoreElements()) {
+            ids.nextElement();
+            count++;
+        }
+        return count;
+    }
+    
+    @Override
+    public String toString() {
+        return "sesiones=" + getSessionCount() + (persistent ? " (persistente)" : " (memoria)");
+    }
+}
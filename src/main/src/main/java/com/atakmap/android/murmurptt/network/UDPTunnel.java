@@ -0,0 +1,155 @@
+package com.atakmap.android.murmurptt.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.security.GeneralSecurityException;
+
+/**
+ * Canal UDP de voz de una conexión Murmur.
+ *
+ * Usa un DatagramChannel conectado al servidor y registrado en el Selector del
+ * ControlTransport, así que recibir no añade threads. Los paquetes se cifran
+ * y descifran con el CryptState de la conexión sobre buffers propios
+ * reutilizados: enviar o recibir no asigna memoria.
+ */
+public class UDPTunnel {
+    
+    private static final String TAG = "UDPTunnel";
+    // Mumble limita los paquetes de voz a 1024 bytes; margen para cabeceras
+    public static final int MAX_DATAGRAM_SIZE = 2048;
+    // Lecturas por evento para no acaparar el thread de E/S
+    private static final int MAX_READS_PER_EVENT = 32;
+    
+    public interface Listener {
+        /**
+         * Paquete recibido y descifrado. La vista solo es válida durante la llamada.
+         */
+        void onUdpPacket(byte[] data, int length);
+        
+        /**
+         * No se descifra nada desde hace tiempo: pedir un nuevo nonce al servidor
+         */
+        void onCryptResyncNeeded();
+    }
+    
+    private final ControlTransport transport;
+    private final InetSocketAddress address;
+    private final CryptState cryptState;
+    private final Listener listener;
+    
+    private volatile DatagramChannel channel;
+    private volatile boolean open = false;
+    
+    private final byte[] sendBytes = new byte[MAX_DATAGRAM_SIZE];
+    private final ByteBuffer sendBuffer = ByteBuffer.wrap(sendBytes);
+    private final byte[] receiveBytes = new byte[MAX_DATAGRAM_SIZE];
+    private final ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveBytes);
+    private final byte[] plainBytes = new byte[MAX_DATAGRAM_SIZE];
+    
+    private volatile long packetsSent = 0;
+    private volatile long packetsReceived = 0;
+    private volatile long decryptFailures = 0;
+    
+    public UDPTunnel(ControlTransport transport, InetSocketAddress address,
+                     CryptState cryptState, Listener listener) {
+        this.transport = transport;
+        this.address = address;
+        this.cryptState = cryptState;
+        this.listener = listener;
+    }
+    
+    /**
+     * Abrir el canal y registrarlo en el thread de E/S
+     */
+    public void start() throws IOException {
+        DatagramChannel ch = DatagramChannel.open();
+        ch.configureBlocking(false);
+        ch.connect(address);
+        channel = ch;
+        open = true;
+        transport.register(ch, this);
+        Log.i(TAG, "UDP abierto hacia " + address);
+    }
+    
+    public void stop() {
+        open = false;
+        DatagramChannel ch = channel;
+        if (ch != null) {
+            try {
+                // Cerrar el canal cancela también su registro en el Selector
+                ch.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error cerrando UDP", e);
+            }
+        }
+    }
+    
+    /**
+     * El canal está abierto y hay clave de cifrado
+     */
+    public boolean isConnected() {
+        return open && cryptState.isValid();
+    }
+    
+    /**
+     * Cifrar y enviar un paquete en claro (formato de voz o ping UDP de Mumble)
+     */
+    public void send(byte[] data, int offset, int length) throws IOException, GeneralSecurityException {
+        if (length + CryptState.HEADER_SIZE > MAX_DATAGRAM_SIZE) {
+            throw new IOException("Paquete UDP demasiado grande: " + length);
+        }
+        synchronized (sendBuffer) {
+            int encrypted = cryptState.encrypt(data, offset, length, sendBytes, 0);
+            sendBuffer.clear();
+            sendBuffer.limit(encrypted);
+            channel.write(sendBuffer);
+            packetsSent++;
+        }
+    }
+    
+    // ==================== THREAD DE E/S ====================
+    
+    void onReady(SelectionKey key) {
+        if (!key.isValid() || !key.isReadable()) return;
+        try {
+            for (int i = 0; i < MAX_READS_PER_EVENT && open; i++) {
+                receiveBuffer.clear();
+                int read = channel.read(receiveBuffer);
+                if (read <= 0) break;
+                
+                int plain = cryptState.decrypt(receiveBytes, 0, read, plainBytes, 0);
+                if (plain < 0) {
+                    decryptFailures++;
+                    if (cryptState.checkResyncNeeded(SystemClock.elapsedRealtime())) {
+                        listener.onCryptResyncNeeded();
+                    }
+                    continue;
+                }
+                packetsReceived++;
+                listener.onUdpPacket(plainBytes, plain);
+            }
+        } catch (PortUnreachableException e) {
+            // ICMP: el servidor no escucha UDP; la voz sigue por TCP
+            Log.d(TAG, "Puerto UDP inalcanzable en " + address);
+        } catch (Exception e) {
+            Log.e(TAG, "Error recibiendo UDP", e);
+        }
+    }
+    
+    public long getPacketsSent() { return packetsSent; }
+    public long getPacketsReceived() { return packetsReceived; }
+    public long getDecryptFailures() { return decryptFailures; }
+    
+    @Override
+    public String toString() {
+        return "enviados=" + packetsSent + " recibidos=" + packetsReceived
+            + " fallos=" + decryptFailures + " " + cryptState;
+    }
+}
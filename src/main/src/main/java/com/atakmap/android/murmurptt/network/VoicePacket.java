@@ -0,0 +1,282 @@
+package com.atakmap.android.murmurptt.network;
+
+/**
+ * Lectura y escritura de paquetes de voz Mumble (formato UDP, también usado
+ * dentro de UDPTUNNEL).
+ *
+ * Formato: cabecera (tipo 3 bits | target 5 bits), [sesión varint solo
+ * servidor -> cliente], secuencia varint, longitud Opus varint (bit 0x2000 =
+ * terminador), payload Opus y opcionalmente posición (3 floats).
+ *
+ * El lector no copia: deja offset/longitud del payload sobre el buffer de
+ * origen, válidos mientras el buffer no se reutilice. Una instancia es
+ * reutilizable y no es thread-safe.
+ */
+public class VoicePacket {
+    
+    public static final int TYPE_CELT_ALPHA = 0;
+    public static final int TYPE_PING = 1;
+    public static final int TYPE_SPEEX = 2;
+    public static final int TYPE_CELT_BETA = 3;
+    public static final int TYPE_OPUS = 4;
+    
+    public static final int TARGET_NORMAL = 0;
+    public static final int TARGET_SERVER_LOOPBACK = 31;
+    
+    private static final int OPUS_TERMINATOR = 0x2000;
+    private static final int OPUS_LENGTH_MASK = 0x1FFF;
+    private static final int POSITION_SIZE = 12;
+    
+    /**
+     * Cabecera máxima cliente -> servidor: tipo + secuencia (64 bits) + longitud
+     */
+    public static final int MAX_HEADER_SIZE = 1 + 9 + 2;
+    
+    /**
+     * Ping UDP: cabecera + marca de tiempo como varint
+     */
+    public static final int MAX_PING_SIZE = 1 + 9;
+    
+    // Vista del último paquete leído
+    private byte[] buffer;
+    private int type;
+    private int target;
+    private int session;
+    private long sequence;
+    private int payloadOffset;
+    private int payloadLength;
+    private boolean terminator;
+    private int positionOffset;
+    
+    // Posición del lector
+    private int pos;
+    private int end;
+    
+    // ==================== LECTURA ====================
+    
+    /**
+     * Interpretar un paquete de voz. Con fromServer el paquete incluye la sesión
+     * del emisor. Devuelve false si el paquete está truncado o no es Opus.
+     */
+    public boolean parse(byte[] data, int offset, int length, boolean fromServer) {
+        buffer = data;
+        pos = offset;
+        end = offset + length;
+        session = -1;
+        positionOffset = -1;
+        
+        if (length < 1) return false;
+        
+        int header = data[pos++] & 0xFF;
+        type = (header >> 5) & 0x7;
+        target = header & 0x1F;
+        
+        if (type != TYPE_OPUS) {
+            return false;
+        }
+        
+        if (fromServer) {
+            session = (int) readVarint();
+        }
+        sequence = readVarint();
+        
+        int opusHeader = (int) readVarint();
+        terminator = (opusHeader & OPUS_TERMINATOR) != 0;
+        payloadLength = opusHeader & OPUS_LENGTH_MASK;
+        payloadOffset = pos;
+        
+        if (pos < 0 || payloadOffset + payloadLength > end) {
+            return false;
+        }
+        
+        pos = payloadOffset + payloadLength;
+        if (end - pos >= POSITION_SIZE) {
+            positionOffset = pos;
+        }
+        return true;
+    }
+    
+    /**
+     * Interpretar un ping UDP devuelto por el servidor. Devuelve su marca de
+     * tiempo o -1 si no es un ping válido.
+     */
+    public long parsePing(byte[] data, int offset, int length) {
+        buffer = data;
+        pos = offset;
+        end = offset + length;
+        
+        if (length < 2 || ((data[pos++] >> 5) & 0x7) != TYPE_PING) {
+            return -1;
+        }
+        long timestamp = readVarint();
+        return pos < 0 ? -1 : timestamp;
+    }
+    
+    /**
+     * Tipo de un paquete sin interpretarlo completo
+     */
+    public static int peekType(byte[] data, int offset) {
+        return (data[offset] >> 5) & 0x7;
+    }
+    
+    public byte[] getBuffer() { return buffer; }
+    public int getType() { return type; }
+    public int getTarget() { return target; }
+    public int getSession() { return session; }
+    public long getSequence() { return sequence; }
+    public int getPayloadOffset() { return payloadOffset; }
+    public int getPayloadLength() { return payloadLength; }
+    public boolean isTerminator() { return terminator; }
+    public boolean hasPosition() { return positionOffset >= 0; }
+    
+    /**
+     * Componente de posición (0 = x, 1 = y, 2 = z)
+     */
+    public float getPosition(int axis) {
+        int p = positionOffset + axis * 4;
+        int bits = (buffer[p] & 0xFF) << 24 | (buffer[p + 1] & 0xFF) << 16
+            | (buffer[p + 2] & 0xFF) << 8 | (buffer[p + 3] & 0xFF);
+        return Float.intBitsToFloat(bits);
+    }
+    
+    private long readVarint() {
+        if (pos < 0 || pos >= end) {
+            pos = -1;
+            return 0;
+        }
+        int v = buffer[pos++] & 0xFF;
+        
+        if ((v & 0x80) == 0x00) {
+            return v & 0x7F;
+        } else if ((v & 0xC0) == 0x80) {
+            return (v & 0x3F) << 8 | next();
+        } else if ((v & 0xF0) == 0xF0) {
+            switch (v & 0xFC) {
+                case 0xF0:
+                    return (long) next() << 24 | next() << 16 | next() << 8 | next();
+                case 0xF4:
+                    return (long) next() << 56 | (long) next() << 48 | (long) next() << 40
+                        | (long) next() << 32 | (long) next() << 24 | next() << 16 | next() << 8 | next();
+                case 0xF8:
+                    return -readVarint();
+                case 0xFC:
+                    return ~(v & 0x03);
+                default:
+                    pos = -1;
+                    return 0;
+            }
+        } else if ((v & 0xF0) == 0xE0) {
+            return (v & 0x0F) << 24 | next() << 16 | next() << 8 | next();
+        } else if ((v & 0xE0) == 0xC0) {
+            return (v & 0x1F) << 16 | next() << 8 | next();
+        }
+        pos = -1;
+        return 0;
+    }
+    
+    private int next() {
+        if (pos < 0 || pos >= end) {
+            pos = -1;
+            return 0;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+    
+    // ==================== ESCRITURA ====================
+    
+    /**
+     * Escribir la cabecera cliente -> servidor justo antes de un payload ya
+     * codificado en buf[payloadOffset]. Requiere MAX_HEADER_SIZE bytes libres
+     * antes del payload. Devuelve el offset de inicio del paquete; el paquete
+     * termina en payloadOffset + payloadLength.
+     */
+    public static int writeHeader(byte[] buf, int payloadOffset, int payloadLength,
+                                  int target, long sequence, boolean terminator) {
+        return writeHeader(buf, payloadOffset, payloadLength, target, -1, sequence, terminator);
+    }
+    
+    /**
+     * Escribir la cabecera incluyendo la sesión del emisor (formato servidor ->
+     * cliente) si session no es negativa. Requiere MAX_HEADER_SIZE + 5 bytes
+     * libres antes del payload en ese caso.
+     */
+    public static int writeHeader(byte[] buf, int payloadOffset, int payloadLength,
+                                  int target, int session, long sequence, boolean terminator) {
+        int opusHeader = payloadLength & OPUS_LENGTH_MASK;
+        if (terminator) {
+            opusHeader |= OPUS_TERMINATOR;
+        }
+        
+        int headerSize = 1 + varintSize(sequence) + varintSize(opusHeader);
+        if (session >= 0) {
+            headerSize += varintSize(session);
+        }
+        int start = payloadOffset - headerSize;
+        if (start < 0) {
+            throw new IllegalArgumentException("Espacio insuficiente para la cabecera de voz");
+        }
+        
+        int p = start;
+        buf[p++] = (byte) ((TYPE_OPUS << 5) | (target & 0x1F));
+        if (session >= 0) {
+            p = writeVarint(buf, p, session);
+        }
+        p = writeVarint(buf, p, sequence);
+        writeVarint(buf, p, opusHeader);
+        return start;
+    }
+    
+    /**
+     * Escribir un ping UDP con la marca de tiempo indicada. Requiere
+     * MAX_PING_SIZE bytes. Devuelve la longitud del paquete.
+     */
+    public static int writePing(byte[] buf, int offset, long timestamp) {
+        buf[offset] = (byte) (TYPE_PING << 5);
+        return writeVarint(buf, offset + 1, timestamp) - offset;
+    }
+    
+    /**
+     * Bytes que ocupa un valor no negativo como varint Mumble
+     */
+    public static int varintSize(long value) {
+        if (value < 0x80) return 1;
+        if (value < 0x4000) return 2;
+        if (value < 0x200000) return 3;
+        if (value < 0x10000000) return 4;
+        if (value < 0x100000000L) return 5;
+        return 9;
+    }
+    
+    /**
+     * Escribir un valor no negativo como varint Mumble. Devuelve la nueva posición.
+     */
+    public static int writeVarint(byte[] buf, int p, long value) {
+        if (value < 0x80) {
+            buf[p++] = (byte) value;
+        } else if (value < 0x4000) {
+            buf[p++] = (byte) ((value >> 8) | 0x80);
+            buf[p++] = (byte) value;
+        } else if (value < 0x200000) {
+            buf[p++] = (byte) ((value >> 16) | 0xC0);
+            buf[p++] = (byte) (value >> 8);
+            buf[p++] = (byte) value;
+        } else if (value < 0x10000000) {
+            buf[p++] = (byte) ((value >> 24) | 0xE0);
+            buf[p++] = (byte) (value >> 16);
+            buf[p++] = (byte) (value >> 8);
+            buf[p++] = (byte) value;
+        } else if (value < 0x100000000L) {
+            buf[p++] = (byte) 0xF0;
+            buf[p++] = (byte) (value >> 24);
+            buf[p++] = (byte) (value >> 16);
+            buf[p++] = (byte) (value >> 8);
+            buf[p++] = (byte) value;
+        } else {
+            buf[p++] = (byte) 0xF4;
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[p++] = (byte) (value >> shift);
+            }
+        }
+        return p;
+    }
+}
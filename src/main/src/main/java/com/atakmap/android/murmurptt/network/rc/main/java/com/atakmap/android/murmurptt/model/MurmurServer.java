@@ -8,6 +8,15 @@ import java.util.UUID;
  */
 public class MurmurServer implements Serializable {
     
+    // Tramas de 20 ms agrupadas por paquete de voz (20-120 ms). Las tramas
+    // Opus de 80-120 ms requieren libopus 1.2 o posterior
+    public static final int MIN_FRAMES_PER_PACKET = 1;
+    public static final int MAX_FRAMES_PER_PACKET = 6;
+    
+    // Tamaño máximo de un mensaje de control recibido; uno mayor cierra la conexión
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+    public static final int MIN_MAX_MESSAGE_SIZE = 64 * 1024;
+    
     private String id;
     private String name;
     private String host;
@@ -17,11 +26,17 @@ public class MurmurServer implements Serializable {
     private boolean useUDP;
     private boolean autoConnect;
     private String defaultChannel;
+    private int framesPerPacket;
+    private int congestedFramesPerPacket;
+    private int maxMessageSize;
     
     public MurmurServer() {
         this.id = UUID.randomUUID().toString();
         this.port = 64738; // Puerto por defecto de Mumble
         this.useUDP = true;
+        this.framesPerPacket = 1;
+        this.congestedFramesPerPacket = 3;
+        this.maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
     }
     
     public MurmurServer(String name, String host, int port, String username, String password) {
@@ -61,6 +76,38 @@ public class MurmurServer implements Serializable {
     public String getDefaultChannel() { return defaultChannel; }
     public void setDefaultChannel(String defaultChannel) { this.defaultChannel = defaultChannel; }
     
+    /**
+     * Tramas por paquete con el enlace normal
+     */
+    public int getFramesPerPacket() { return framesPerPacket; }
+    public void setFramesPerPacket(int framesPerPacket) {
+        this.framesPerPacket = clampFramesPerPacket(framesPerPacket);
+    }
+    
+    /**
+     * Tramas por paquete mientras el envío está congestionado. Un valor no
+     * mayor que framesPerPacket desactiva el cambio automático.
+     */
+    public int getCongestedFramesPerPacket() { return congestedFramesPerPacket; }
+    public void setCongestedFramesPerPacket(int congestedFramesPerPacket) {
+        this.congestedFramesPerPacket = clampFramesPerPacket(congestedFramesPerPacket);
+    }
+    
+    /**
+     * Tamaño máximo en bytes de un mensaje de control recibido
+     */
+    public int getMaxMessageSize() {
+        // 0 en configuraciones guardadas antes de existir el campo
+        return maxMessageSize > 0 ? maxMessageSize : DEFAULT_MAX_MESSAGE_SIZE;
+    }
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = Math.max(MIN_MAX_MESSAGE_SIZE, maxMessageSize);
+    }
+    
+    private static int clampFramesPerPacket(int frames) {
+        return Math.max(MIN_FRAMES_PER_PACKET, Math.min(MAX_FRAMES_PER_PACKET, frames));
+    }
+    
     @Override
     public String toString() {
         return name + " (" + host + ":" + port + ")";
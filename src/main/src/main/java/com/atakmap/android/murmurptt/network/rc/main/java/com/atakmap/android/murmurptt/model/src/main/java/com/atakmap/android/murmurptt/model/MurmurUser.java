@@ -5,6 +5,20 @@ package com.atakmap.android.murmurptt.model;
  */
 public class MurmurUser {
     
+    /**
+     * Campos cambiados por un UserState (máscara de bits de onUserChanged)
+     */
+    public static final int CHANGED_NAME = 1;
+    public static final int CHANGED_CHANNEL = 1 << 1;
+    public static final int CHANGED_MUTE = 1 << 2;
+    public static final int CHANGED_DEAF = 1 << 3;
+    public static final int CHANGED_SUPPRESS = 1 << 4;
+    public static final int CHANGED_SELF_MUTE = 1 << 5;
+    public static final int CHANGED_SELF_DEAF = 1 << 6;
+    public static final int CHANGED_PRIORITY_SPEAKER = 1 << 7;
+    public static final int CHANGED_RECORDING = 1 << 8;
+    public static final int CHANGED_COMMENT = 1 << 9;
+    
     private int sessionId;
     private String name;
     private int channelId;
@@ -17,17 +31,45 @@ public class MurmurUser {
     private boolean recording;
     private String comment;
     private boolean locallyMuted;
-    private long lastActivity;
+    // Actividad de voz compartida con las copias: la actualiza el thread de
+    // E/S con cada paquete sin publicar una vista nueva
+    private final VoiceActivity activity;
+    
+    private static final class VoiceActivity {
+        volatile long lastMs;
+    }
     
     public MurmurUser(int sessionId, String name) {
         this.sessionId = sessionId;
         this.name = name;
-        this.lastActivity = System.currentTimeMillis();
+        this.activity = new VoiceActivity();
+        this.activity.lastMs = System.currentTimeMillis();
+    }
+    
+    /**
+     * Copia para las vistas inmutables del servidor (ServerSnapshot). La
+     * actividad de voz no se copia: se comparte con el original.
+     */
+    public MurmurUser(MurmurUser other) {
+        this.sessionId = other.sessionId;
+        this.name = other.name;
+        this.channelId = other.channelId;
+        this.mute = other.mute;
+        this.deaf = other.deaf;
+        this.suppress = other.suppress;
+        this.selfMute = other.selfMute;
+        this.selfDeaf = other.selfDeaf;
+        this.prioritySpeaker = other.prioritySpeaker;
+        this.recording = other.recording;
+        this.comment = other.comment;
+        this.locallyMuted = other.locallyMuted;
+        this.activity = other.activity;
     }
     
     // Getters y Setters
     public int getSessionId() { return sessionId; }
     public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
     public int getChannelId() { return channelId; }
     public void setChannelId(int channelId) { this.channelId = channelId; }
     
@@ -59,11 +101,14 @@ public class MurmurUser {
     public void setLocallyMuted(boolean locallyMuted) { this.locallyMuted = locallyMuted; }
     
     public boolean isSpeaking() {
-        return System.currentTimeMillis() - lastActivity < 500;
+        return System.currentTimeMillis() - activity.lastMs < 500;
     }
     
+    /**
+     * Paquete de voz recibido (thread de E/S)
+     */
     public void updateActivity() {
-        this.lastActivity = System.currentTimeMillis();
+        activity.lastMs = System.currentTimeMillis();
     }
     
     @Override
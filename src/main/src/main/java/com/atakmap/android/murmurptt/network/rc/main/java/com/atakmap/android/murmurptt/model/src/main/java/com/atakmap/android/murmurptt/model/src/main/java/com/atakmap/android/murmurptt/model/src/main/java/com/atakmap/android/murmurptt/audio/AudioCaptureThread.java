@@ -0,0 +1,224 @@
+package com.atakmap.android.murmurptt.audio;
+
+import android.media.AudioRecord;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Thread dedicado de captura de audio en tiempo real.
+ *
+ * Lee tramas completas de AudioRecord con lecturas bloqueantes a prioridad
+ * THREAD_PRIORITY_URGENT_AUDIO. Solo este thread arranca y detiene la
+ * grabación, de modo que una parada nunca corta una lectura en curso: la trama
+ * en vuelo se entrega completa y no se produce ninguna más.
+ */
+public class AudioCaptureThread extends Thread {
+    
+    private static final String TAG = "AudioCaptureThread";
+    private static final long STOP_WAIT_MS = 100;
+    // Lecturas vacías seguidas tras las que se da la grabación por bloqueada
+    private static final int MAX_EMPTY_READS = 50;
+    
+    public enum CaptureState {
+        IDLE,
+        RUNNING,
+        STOPPING,
+        SHUTDOWN
+    }
+    
+    public interface FrameHandler {
+        /**
+         * Trama completa capturada. La trama pertenece al pool y se devuelve al retornar.
+         */
+        void onFrameCaptured(AudioFramePool.Frame frame);
+        
+        /**
+         * La captura se ha detenido tras entregar la última trama
+         */
+        void onCaptureStopped();
+    }
+    
+    private final Object lock = new Object();
+    private final AudioFramePool framePool;
+    private final FrameTimingStats timingStats;
+    private final FrameHandler handler;
+    private final int frameSize;
+    
+    private volatile CaptureState state = CaptureState.IDLE;
+    private AudioRecord audioRecord;
+    
+    public AudioCaptureThread(AudioFramePool framePool, long framePeriodNanos, FrameHandler handler) {
+        super("PTTCaptureThread");
+        this.framePool = framePool;
+        this.frameSize = framePool.getFrameSize();
+        this.timingStats = new FrameTimingStats(framePeriodNanos);
+        this.handler = handler;
+    }
+    
+    /**
+     * Iniciar captura. Si la captura anterior aún está terminando su última
+     * trama, se espera a que finalice para no solapar transmisiones.
+     */
+    public boolean startCapture(AudioRecord record) {
+        synchronized (lock) {
+            if (state == CaptureState.STOPPING) {
+                waitForIdle();
+            }
+            if (state != CaptureState.IDLE) {
+                Log.w(TAG, "No se puede iniciar captura en estado " + state);
+                return false;
+            }
+            audioRecord = record;
+            state = CaptureState.RUNNING;
+            lock.notifyAll();
+            return true;
+        }
+    }
+    
+    /**
+     * Solicitar parada. No bloquea: la trama en curso se completa en el thread de captura.
+     */
+    public void stopCapture() {
+        synchronized (lock) {
+            if (state == CaptureState.RUNNING) {
+                state = CaptureState.STOPPING;
+            }
+        }
+    }
+    
+    /**
+     * Terminar el thread definitivamente
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            state = CaptureState.SHUTDOWN;
+            lock.notifyAll();
+        }
+        interrupt();
+    }
+    
+    public CaptureState getCaptureState() {
+        return state;
+    }
+    
+    public FrameTimingStats getTimingStats() {
+        return timingStats;
+    }
+    
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        
+        while (true) {
+            AudioRecord record;
+            synchronized (lock) {
+                while (state == CaptureState.IDLE) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // Revisar estado
+                    }
+                }
+                if (state == CaptureState.SHUTDOWN) {
+                    return;
+                }
+                record = audioRecord;
+            }
+            
+            captureLoop(record);
+            
+            // Notificar antes de volver a IDLE para que una nueva captura no se solape
+            handler.onCaptureStopped();
+            
+            synchronized (lock) {
+                if (state != CaptureState.SHUTDOWN) {
+                    state = CaptureState.IDLE;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+    
+    private void captureLoop(AudioRecord record) {
+        try {
+            record.startRecording();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "No se pudo iniciar grabación", e);
+            return;
+        }
+        
+        timingStats.reset();
+        
+        while (state == CaptureState.RUNNING) {
+            AudioFramePool.Frame frame = framePool.acquire();
+            try {
+                frame.pcmLength = readFrame(record, frame.pcm);
+                if (frame.pcmLength < 0) {
+                    Log.e(TAG, "Error de lectura de AudioRecord: " + frame.pcmLength);
+                    break;
+                }
+                if (frame.pcmLength < frameSize) {
+                    Log.e(TAG, "AudioRecord no entrega datos, captura detenida");
+                    break;
+                }
+                
+                long captured = SystemClock.elapsedRealtimeNanos();
+                timingStats.onFrame(captured);
+                handler.onFrameCaptured(frame);
+                timingStats.onProcessed(SystemClock.elapsedRealtimeNanos() - captured);
+            } catch (Exception e) {
+                Log.e(TAG, "Error procesando trama", e);
+            } finally {
+                framePool.release(frame);
+            }
+        }
+        
+        try {
+            record.stop();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error deteniendo grabación", e);
+        }
+        Log.i(TAG, "Captura detenida: " + timingStats);
+    }
+    
+    /**
+     * Leer una trama completa. Las lecturas cortas se acumulan hasta llenarla;
+     * solo se devuelve una trama incompleta si AudioRecord deja de entregar datos.
+     */
+    private int readFrame(AudioRecord record, short[] pcm) {
+        int offset = 0;
+        int emptyReads = 0;
+        while (offset < frameSize) {
+            int read = record.read(pcm, offset, frameSize - offset);
+            if (read < 0) {
+                return read;
+            }
+            if (read == 0) {
+                if (++emptyReads >= MAX_EMPTY_READS || state == CaptureState.SHUTDOWN) {
+                    break;
+                }
+                continue;
+            }
+            emptyReads = 0;
+            offset += read;
+        }
+        return offset;
+    }
+    
+    private void waitForIdle() {
+        long deadline = SystemClock.elapsedRealtime() + STOP_WAIT_MS;
+        while (state == CaptureState.STOPPING) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                lock.wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.atakmap.android.murmurptt.audio;
+
+import android.util.Log;
+
+/**
+ * Anillo fijo de tramas de audio preasignadas para la ruta de transmisión.
+ * Cada trama lleva su buffer PCM y su buffer de paquete, reutilizados desde
+ * AudioRecord.read hasta el envío. El thread de captura devuelve cada trama
+ * antes de pedir la siguiente, así que en régimen normal basta un hueco.
+ */
+public class AudioFramePool {
+    
+    private static final String TAG = "AudioFramePool";
+    
+    // Tamaño máximo de un paquete Opus codificado
+    public static final int MAX_PACKET_SIZE = 1024;
+    
+    /**
+     * Trama reutilizable (PCM + paquete codificado)
+     */
+    public static class Frame {
+        public final short[] pcm;
+        public final byte[] packet;
+        public int pcmLength;
+        public int packetLength;
+        private boolean inUse;
+        
+        Frame(int frameSize, int packetSize) {
+            this.pcm = new short[frameSize];
+            this.packet = new byte[packetSize];
+        }
+    }
+    
+    private final Frame[] ring;
+    private final int frameSize;
+    private final int packetSize;
+    private int next = 0;
+    
+    public AudioFramePool(int capacity, int frameSize) {
+        this(capacity, frameSize, MAX_PACKET_SIZE);
+    }
+    
+    public AudioFramePool(int capacity, int frameSize, int packetSize) {
+        this.frameSize = frameSize;
+        this.packetSize = packetSize;
+        this.ring = new Frame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Frame(frameSize, packetSize);
+        }
+    }
+    
+    /**
+     * Obtener la siguiente trama libre del anillo. Si todas están en uso se
+     * asigna una trama temporal.
+     */
+    public synchronized Frame acquire() {
+        for (int i = 0; i < ring.length; i++) {
+            Frame frame = ring[next];
+            next = (next + 1) % ring.length;
+            if (!frame.inUse) {
+                frame.inUse = true;
+                frame.pcmLength = 0;
+                frame.packetLength = 0;
+                return frame;
+            }
+        }
+        
+        // Anillo agotado: asignar fuera del pool
+        Log.w(TAG, "Pool agotado, asignando trama temporal");
+        Frame frame = new Frame(frameSize, packetSize);
+        frame.inUse = true;
+        return frame;
+    }
+    
+    /**
+     * Devolver una trama al anillo
+     */
+    public synchronized void release(Frame frame) {
+        frame.inUse = false;
+    }
+    
+    public int getFrameSize() {
+        return frameSize;
+    }
+}
@@ -0,0 +1,83 @@
+package com.atakmap.android.murmurptt.audio;
+
+/**
+ * Mezclador de tramas PCM de varios hablantes.
+ *
+ * Acumula en un buffer de enteros preasignado con ganancia por hablante en
+ * punto fijo Q15 y satura al convertir a 16 bits.
+ */
+public class AudioMixer {
+    
+    public static final int UNITY_GAIN = 1 << 15;
+    private static final int MAX_GAIN = 4 * UNITY_GAIN;
+    
+    private final int[] accumulator;
+    private final int frameSize;
+    private int sources = 0;
+    
+    public AudioMixer(int frameSize) {
+        this.frameSize = frameSize;
+        this.accumulator = new int[frameSize];
+    }
+    
+    /**
+     * Convertir una ganancia lineal a punto fijo Q15
+     */
+    public static int gainToQ15(float gain) {
+        int q = Math.round(gain * UNITY_GAIN);
+        return Math.max(0, Math.min(MAX_GAIN, q));
+    }
+    
+    /**
+     * Empezar una nueva trama de mezcla
+     */
+    public void begin() {
+        for (int i = 0; i < frameSize; i++) {
+            accumulator[i] = 0;
+        }
+        sources = 0;
+    }
+    
+    /**
+     * Sumar length muestras de src a la trama a partir de outOffset
+     */
+    public void add(int outOffset, short[] src, int srcOffset, int length, int gainQ15) {
+        if (gainQ15 == UNITY_GAIN) {
+            for (int i = 0; i < length; i++) {
+                accumulator[outOffset + i] += src[srcOffset + i];
+            }
+        } else {
+            // En long: con ganancia mayor que 2 el producto no cabe en un int
+            for (int i = 0; i < length; i++) {
+                accumulator[outOffset + i] += (int) ((src[srcOffset + i] * (long) gainQ15) >> 15);
+            }
+        }
+    }
+    
+    /**
+     * Contabilizar una fuente que ha aportado audio a la trama actual
+     */
+    public void addSource() {
+        sources++;
+    }
+    
+    public int getSources() {
+        return sources;
+    }
+    
+    /**
+     * Volcar la mezcla a 16 bits con saturación. Devuelve false si no hubo fuentes.
+     */
+    public boolean finish(short[] out) {
+        for (int i = 0; i < frameSize; i++) {
+            int sample = accumulator[i];
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            out[i] = (short) sample;
+        }
+        return sources > 0;
+    }
+}
@@ -0,0 +1,685 @@
+package com.atakmap.android.murmurptt.audio;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Motor de reproducción de audio recibido.
+ *
+ * Cada hablante tiene su propio buffer de jitter adaptativo y su propio
+ * decodificador (DecoderPool). Un thread de reproducción dedicado extrae
+ * paquetes en orden de secuencia, los decodifica, mezcla los hablantes
+ * simultáneos (AudioMixer) y alimenta un AudioTrack de baja latencia. La
+ * escritura bloqueante en el AudioTrack marca el ritmo de una trama por
+ * iteración.
+ *
+ * Solo se recorren los hablantes activos: enqueue() añade el flujo al
+ * conjunto de activos y el thread de reproducción lo retira cuando se vacía,
+ * así que el coste por trama no depende de cuántos usuarios hay conectados.
+ *
+ * Los huecos de secuencia se rellenan con FEC en banda del paquete siguiente
+ * o, si no ha llegado, con ocultación de pérdidas (PLC) del decodificador.
+ */
+public class AudioPlaybackEngine {
+    
+    private static final String TAG = "AudioPlaybackEngine";
+    
+    private static final long STREAM_IDLE_TIMEOUT_MS = 30000;
+    private static final long CLEANUP_INTERVAL_MS = 1000;
+    private static final int IDLE_FRAMES_BEFORE_PAUSE = 10;
+    // Máximo de hablantes decodificados y mezclados por trama
+    private static final int MAX_MIXED_SPEAKERS = 8;
+    
+    /**
+     * Flujo de audio de un hablante
+     */
+    public static class SpeakerStream {
+        final String serverId;
+        final int session;
+        final JitterBuffer jitterBuffer = new JitterBuffer();
+        final short[] pcm = new short[OpusCodec.MAX_FRAME_SIZE];
+        int pcmLength = 0;
+        int pcmPos = 0;
+        long arrivalSeq = 0;
+        volatile long lastPacketMs;
+        volatile boolean muted = false;
+        volatile boolean priority = false;
+        volatile int gainQ15 = AudioMixer.UNITY_GAIN;
+        // En el conjunto de activos (o en camino hacia él)
+        final AtomicBoolean active = new AtomicBoolean();
+        volatile boolean removed = false;
+        // Solo thread de reproducción: se mezcla en la trama en curso / anterior
+        boolean mixing = false;
+        boolean wasMixing = false;
+        // Solo thread de reproducción: muestras aún por consumir de paquetes
+        // descartados sin decodificar
+        int skipSamples = 0;
+        
+        SpeakerStream(String serverId, int session) {
+            this.serverId = serverId;
+            this.session = session;
+        }
+        
+        public String getServerId() { return serverId; }
+        public int getSession() { return session; }
+        public JitterBuffer getJitterBuffer() { return jitterBuffer; }
+        
+        boolean hasAudio() {
+            return pcmPos < pcmLength || !jitterBuffer.isIdle();
+        }
+    }
+    
+    /**
+     * Ajustes locales de un hablante; se guardan aunque aún no tenga flujo
+     */
+    private static class SpeakerSettings {
+        boolean muted = false;
+        boolean priority = false;
+        int gainQ15 = AudioMixer.UNITY_GAIN;
+        
+        boolean isDefault() {
+            return !muted && !priority && gainQ15 == AudioMixer.UNITY_GAIN;
+        }
+    }
+    
+    private final int sampleRate;
+    private final int frameSize;
+    private final Object lock = new Object();
+    
+    // Flujos por servidor y sesión
+    private final HashMap<String, SparseArray<SpeakerStream>> streamsByServer = new HashMap<>();
+    private final HashMap<String, SparseArray<SpeakerSettings>> settingsByServer = new HashMap<>();
+    // Flujos que pasan a tener audio; el thread de reproducción los recoge
+    private final ConcurrentLinkedQueue<SpeakerStream> activated = new ConcurrentLinkedQueue<>();
+    // Jitter de red por servidor para los flujos nuevos
+    private final HashMap<String, Double> networkJitterByServer = new HashMap<>();
+    
+    // Estado del thread de reproducción (solo accedido desde él)
+    private final short[] outFrame;
+    private final byte[] packet = new byte[AudioFramePool.MAX_PACKET_SIZE];
+    private final int[] packetLength = new int[1];
+    private final DecoderPool decoderPool;
+    private final AudioMixer mixer;
+    private final ArrayList<SpeakerStream> active = new ArrayList<>();
+    private final SpeakerStream[] selected = new SpeakerStream[MAX_MIXED_SPEAKERS];
+    // Servidores desconectados y hablantes eliminados cuyos decodificadores
+    // libera el thread de reproducción
+    private final ConcurrentLinkedQueue<String> removedServers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<SpeakerStream> removedSpeakers = new ConcurrentLinkedQueue<>();
+    
+    private Thread playbackThread;
+    private AudioTrack audioTrack;
+    private volatile boolean running = false;
+    private volatile boolean sleeping = false;
+    
+    // Estadísticas
+    private volatile long framesPlayed = 0;
+    
+    public AudioPlaybackEngine(int sampleRate, int frameSize) {
+        this.sampleRate = sampleRate;
+        this.frameSize = frameSize;
+        this.outFrame = new short[frameSize];
+        this.decoderPool = new DecoderPool(sampleRate, 1);
+        this.mixer = new AudioMixer(frameSize);
+    }
+    
+    /**
+     * Arrancar el thread de reproducción
+     */
+    public void start() {
+        if (running) return;
+        running = true;
+        playbackThread = new Thread(this::playbackLoop, "PTTPlaybackThread");
+        playbackThread.start();
+    }
+    
+    /**
+     * Detener la reproducción y liberar recursos
+     */
+    public void stop() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        if (playbackThread != null) {
+            try {
+                playbackThread.join(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            playbackThread = null;
+        }
+        decoderPool.destroy();
+    }
+    
+    /**
+     * Encolar un paquete de voz recibido. Con seq negativo se usa el orden de llegada.
+     */
+    public void enqueue(String serverId, int session, long seq, byte[] data, int offset, int length,
+                        boolean terminator) {
+        SpeakerStream stream = getOrCreateStream(serverId, session);
+        long now = SystemClock.elapsedRealtimeNanos();
+        
+        if (seq < 0) {
+            seq = stream.arrivalSeq;
+            stream.arrivalSeq += frameSize * 1000L / sampleRate / JitterBuffer.SEQ_UNIT_MS;
+        }
+        
+        stream.jitterBuffer.put(seq, data, offset, length, terminator, now);
+        if (stream.active.compareAndSet(false, true)) {
+            activated.add(stream);
+        }
+        
+        if (sleeping) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Eliminar los flujos de un servidor (desconexión)
+     */
+    public void removeServer(String serverId) {
+        synchronized (lock) {
+            SparseArray<SpeakerStream> byServer = streamsByServer.remove(serverId);
+            if (byServer != null) {
+                for (int i = 0; i < byServer.size(); i++) {
+                    byServer.valueAt(i).removed = true;
+                }
+            }
+            settingsByServer.remove(serverId);
+            networkJitterByServer.remove(serverId);
+        }
+        removedServers.add(serverId);
+    }
+    
+    /**
+     * Eliminar el flujo y el decodificador de un hablante (usuario que se va o
+     * reconexión). Si el servidor reutiliza la sesión empieza con estado nuevo.
+     */
+    public void removeSpeaker(String serverId, int session) {
+        SpeakerStream stream;
+        synchronized (lock) {
+            SparseArray<SpeakerSettings> settings = settingsByServer.get(serverId);
+            if (settings != null) {
+                settings.remove(session);
+            }
+            SparseArray<SpeakerStream> byServer = streamsByServer.get(serverId);
+            stream = byServer != null ? byServer.get(session) : null;
+            if (stream == null) return;
+            byServer.remove(session);
+            stream.removed = true;
+        }
+        removedSpeakers.add(stream);
+    }
+    
+    /**
+     * Pool de decodificadores por hablante (límite de memoria y estadísticas)
+     */
+    public DecoderPool getDecoderPool() {
+        return decoderPool;
+    }
+    
+    /**
+     * Silenciar localmente un hablante. Sus paquetes se descartan sin decodificar.
+     */
+    public void setSpeakerMuted(String serverId, int session, boolean muted) {
+        synchronized (lock) {
+            SpeakerSettings settings = getSettings(serverId, session, muted);
+            if (settings == null) return;
+            settings.muted = muted;
+            SpeakerStream stream = findStream(serverId, session);
+            if (stream != null) {
+                stream.muted = muted;
+            }
+            pruneSettings(serverId, session, settings);
+        }
+    }
+    
+    /**
+     * Ganancia lineal de un hablante (1.0 = sin cambio)
+     */
+    public void setSpeakerGain(String serverId, int session, float gain) {
+        int gainQ15 = AudioMixer.gainToQ15(gain);
+        synchronized (lock) {
+            SpeakerSettings settings = getSettings(serverId, session, gainQ15 != AudioMixer.UNITY_GAIN);
+            if (settings == null) return;
+            settings.gainQ15 = gainQ15;
+            SpeakerStream stream = findStream(serverId, session);
+            if (stream != null) {
+                stream.gainQ15 = gainQ15;
+            }
+            pruneSettings(serverId, session, settings);
+        }
+    }
+    
+    /**
+     * Hablante prioritario: se mezcla antes que los demás si hay más de
+     * MAX_MIXED_SPEAKERS hablando a la vez
+     */
+    public void setSpeakerPriority(String serverId, int session, boolean priority) {
+        synchronized (lock) {
+            SpeakerSettings settings = getSettings(serverId, session, priority);
+            if (settings == null) return;
+            settings.priority = priority;
+            SpeakerStream stream = findStream(serverId, session);
+            if (stream != null) {
+                stream.priority = priority;
+            }
+            pruneSettings(serverId, session, settings);
+        }
+    }
+    
+    /**
+     * Jitter de red medido para un servidor. Ajusta el retardo mínimo de sus
+     * buffers de jitter, actuales y futuros.
+     */
+    public void setNetworkJitter(String serverId, double jitterMs) {
+        synchronized (lock) {
+            networkJitterByServer.put(serverId, jitterMs);
+            SparseArray<SpeakerStream> byServer = streamsByServer.get(serverId);
+            if (byServer != null) {
+                for (int i = 0; i < byServer.size(); i++) {
+                    byServer.valueAt(i).jitterBuffer.setNetworkJitterMs(jitterMs);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Buffer de jitter de un hablante, o null si no ha enviado audio
+     */
+    public JitterBuffer getJitterBuffer(String serverId, int session) {
+        synchronized (lock) {
+            SpeakerStream stream = findStream(serverId, session);
+            return stream != null ? stream.jitterBuffer : null;
+        }
+    }
+    
+    public long getFramesPlayed() {
+        return framesPlayed;
+    }
+    
+    // ==================== MÉTODOS PRIVADOS ====================
+    
+    /**
+     * Obtener el flujo de un hablante y marcar su actividad. La marca se pone
+     * con el cerrojo: removeIdleStreams() no puede retirar el flujo entre esta
+     * llamada y el put() de enqueue().
+     */
+    private SpeakerStream getOrCreateStream(String serverId, int session) {
+        synchronized (lock) {
+            SparseArray<SpeakerStream> byServer = streamsByServer.get(serverId);
+            if (byServer == null) {
+                byServer = new SparseArray<>();
+                streamsByServer.put(serverId, byServer);
+            }
+            SpeakerStream stream = byServer.get(session);
+            if (stream == null) {
+                stream = new SpeakerStream(serverId, session);
+                Double networkJitter = networkJitterByServer.get(serverId);
+                if (networkJitter != null) {
+                    stream.jitterBuffer.setNetworkJitterMs(networkJitter);
+                }
+                SpeakerSettings settings = getSettings(serverId, session, false);
+                if (settings != null) {
+                    stream.muted = settings.muted;
+                    stream.priority = settings.priority;
+                    stream.gainQ15 = settings.gainQ15;
+                }
+                byServer.put(session, stream);
+            }
+            stream.lastPacketMs = SystemClock.elapsedRealtime();
+            return stream;
+        }
+    }
+    
+    // Con lock
+    private SpeakerStream findStream(String serverId, int session) {
+        SparseArray<SpeakerStream> byServer = streamsByServer.get(serverId);
+        return byServer != null ? byServer.get(session) : null;
+    }
+    
+    /**
+     * Ajustes de un hablante (con lock). Solo se crean si create; los ajustes
+     * por defecto no se guardan.
+     */
+    private SpeakerSettings getSettings(String serverId, int session, boolean create) {
+        SparseArray<SpeakerSettings> byServer = settingsByServer.get(serverId);
+        SpeakerSettings settings = byServer != null ? byServer.get(session) : null;
+        if (settings == null && create) {
+            if (byServer == null) {
+                byServer = new SparseArray<>();
+                settingsByServer.put(serverId, byServer);
+            }
+            settings = new SpeakerSettings();
+            byServer.put(session, settings);
+        }
+        return settings;
+    }
+    
+    private void pruneSettings(String serverId, int session, SpeakerSettings settings) {
+        if (!settings.isDefault()) return;
+        SparseArray<SpeakerSettings> byServer = settingsByServer.get(serverId);
+        byServer.remove(session);
+        if (byServer.size() == 0) {
+            settingsByServer.remove(serverId);
+        }
+    }
+    
+    private void playbackLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        
+        audioTrack = createAudioTrack();
+        audioTrack.play();
+        
+        int idleFrames = 0;
+        long lastCleanup = SystemClock.elapsedRealtime();
+        
+        try {
+            while (running) {
+                // Antes de decodificar, para que una sesión reutilizada no use el decodificador anterior
+                releaseRemoved();
+                if (produceFrame() || anyStreamHasAudio()) {
+                    idleFrames = 0;
+                } else if (++idleFrames > IDLE_FRAMES_BEFORE_PAUSE) {
+                    // Sin audio pendiente: pausar hasta el siguiente paquete
+                    waitForAudio();
+                    idleFrames = 0;
+                    continue;
+                }
+                
+                audioTrack.write(outFrame, 0, frameSize);
+                framesPlayed++;
+                
+                long now = SystemClock.elapsedRealtime();
+                if (now - lastCleanup > CLEANUP_INTERVAL_MS) {
+                    removeIdleStreams(now);
+                    lastCleanup = now;
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error en loop de reproducción", e);
+        } finally {
+            audioTrack.stop();
+            audioTrack.release();
+            audioTrack = null;
+        }
+    }
+    
+    /**
+     * Generar la siguiente trama de salida mezclando los hablantes activos.
+     * Como máximo MAX_MIXED_SPEAKERS se decodifican por trama; el resto y los
+     * silenciados se descartan a ritmo de trama sin decodificar.
+     */
+    private boolean produceFrame() {
+        updateActive();
+        selectSpeakers();
+        
+        mixer.begin();
+        for (int i = 0; i < active.size(); i++) {
+            SpeakerStream stream = active.get(i);
+            if (!stream.mixing) {
+                discardFrame(stream);
+                continue;
+            }
+            if (mixStream(stream)) {
+                mixer.addSource();
+            }
+        }
+        return mixer.finish(outFrame);
+    }
+    
+    /**
+     * Recoger los flujos activados por enqueue() y retirar los que se han
+     * vaciado o eliminado
+     */
+    private void updateActive() {
+        SpeakerStream stream;
+        while ((stream = activated.poll()) != null) {
+            active.add(stream);
+        }
+        for (int i = active.size() - 1; i >= 0; i--) {
+            stream = active.get(i);
+            if (!stream.removed && stream.hasAudio()) {
+                continue;
+            }
+            if (!stream.removed) {
+                stream.active.set(false);
+                // enqueue() pudo añadir audio entre la comprobación y el cambio;
+                // si además lo ha vuelto a activar, llegará otra vez por la cola
+                if (stream.hasAudio() && stream.active.compareAndSet(false, true)) {
+                    continue;
+                }
+            }
+            stream.mixing = false;
+            int last = active.size() - 1;
+            active.set(i, active.get(last));
+            active.remove(last);
+        }
+    }
+    
+    /**
+     * Elegir los hablantes que se mezclan: primero los prioritarios, después
+     * los que ya se mezclaban (para no cortar a nadie a mitad de frase) y
+     * después los de actividad más reciente. Los silenciados no se eligen.
+     */
+    private void selectSpeakers() {
+        int count = 0;
+        for (int i = 0; i < active.size(); i++) {
+            SpeakerStream stream = active.get(i);
+            stream.wasMixing = stream.mixing;
+            stream.mixing = false;
+        }
+        for (int i = 0; i < active.size(); i++) {
+            SpeakerStream stream = active.get(i);
+            if (stream.muted) continue;
+            
+            // Inserción ordenada; con la lista llena desplaza al último
+            int pos;
+            if (count < MAX_MIXED_SPEAKERS) {
+                pos = count++;
+            } else if (mixesBefore(stream, selected[count - 1])) {
+                pos = count - 1;
+            } else {
+                continue;
+            }
+            while (pos > 0 && mixesBefore(stream, selected[pos - 1])) {
+                selected[pos] = selected[pos - 1];
+                pos--;
+            }
+            selected[pos] = stream;
+        }
+        for (int i = 0; i < count; i++) {
+            selected[i].mixing = true;
+            selected[i] = null;
+        }
+    }
+    
+    private static boolean mixesBefore(SpeakerStream a, SpeakerStream b) {
+        if (a.priority != b.priority) return a.priority;
+        if (a.wasMixing != b.wasMixing) return a.wasMixing;
+        return a.lastPacketMs > b.lastPacketMs;
+    }
+    
+    /**
+     * Sumar una trama del hablante a la mezcla, decodificando paquetes del
+     * buffer de jitter según haga falta.
+     */
+    private boolean mixStream(SpeakerStream stream) {
+        stream.skipSamples = 0;
+        int written = 0;
+        while (written < frameSize) {
+            if (stream.pcmPos >= stream.pcmLength) {
+                int result = stream.jitterBuffer.poll(packet, packetLength);
+                int decoded;
+                if (result == JitterBuffer.RESULT_PACKET) {
+                    OpusCodec decoder = decoderPool.get(stream.serverId, stream.session);
+                    decoded = decoder.decode(packet, 0, packetLength[0], stream.pcm, 0);
+                } else if (result == JitterBuffer.RESULT_MISSING) {
+                    decoded = recoverLost(stream);
+                } else {
+                    break;
+                }
+                stream.pcmPos = 0;
+                stream.pcmLength = Math.max(decoded, 0);
+                if (decoded <= 0) {
+                    break;
+                }
+            }
+            
+            int n = Math.min(frameSize - written, stream.pcmLength - stream.pcmPos);
+            mixer.add(written, stream.pcm, stream.pcmPos, n, stream.gainQ15);
+            stream.pcmPos += n;
+            written += n;
+        }
+        return written > 0;
+    }
+    
+    /**
+     * Reconstruir la trama perdida: FEC del paquete siguiente si ya está en el
+     * buffer de jitter, PLC en caso contrario. Devuelve las muestras generadas.
+     */
+    private int recoverLost(SpeakerStream stream) {
+        JitterBuffer jitterBuffer = stream.jitterBuffer;
+        OpusCodec decoder = decoderPool.get(stream.serverId, stream.session);
+        int lostSamples = Math.min(OpusCodec.MAX_FRAME_SIZE,
+            jitterBuffer.getFrameMs() * sampleRate / 1000);
+        
+        if (jitterBuffer.peekNext(packet, packetLength)) {
+            int decoded = decoder.decodeFec(packet, 0, packetLength[0], stream.pcm, 0, lostSamples);
+            if (decoded > 0) {
+                jitterBuffer.markRecovered();
+                return decoded;
+            }
+        }
+        
+        int decoded = decoder.decodeLost(stream.pcm, 0, lostSamples);
+        if (decoded > 0) {
+            jitterBuffer.markConcealed();
+        }
+        return decoded;
+    }
+    
+    /**
+     * Consumir una trama del hablante sin decodificarla. Cada paquete cuenta
+     * por su duración (40-120 ms si el emisor agrupa tramas), no por una trama.
+     */
+    private void discardFrame(SpeakerStream stream) {
+        stream.pcmPos = stream.pcmLength;
+        int needed = frameSize;
+        while (needed > stream.skipSamples) {
+            needed -= stream.skipSamples;
+            stream.skipSamples = 0;
+            int result = stream.jitterBuffer.poll(packet, packetLength);
+            if (result != JitterBuffer.RESULT_PACKET && result != JitterBuffer.RESULT_MISSING) {
+                return;
+            }
+            stream.skipSamples = stream.jitterBuffer.getFrameMs() * sampleRate / 1000;
+        }
+        stream.skipSamples -= needed;
+    }
+    
+    private void waitForAudio() {
+        audioTrack.pause();
+        audioTrack.flush();
+        
+        sleeping = true;
+        try {
+            while (running && !anyStreamHasAudio()) {
+                synchronized (lock) {
+                    // enqueue() avisa con el cerrojo: comprobar antes de esperar
+                    if (running && activated.isEmpty()) {
+                        lock.wait(CLEANUP_INTERVAL_MS);
+                    }
+                }
+                // Limpieza sin retener el cerrojo que usa enqueue() en el thread de red
+                removeIdleStreams(SystemClock.elapsedRealtime());
+                releaseRemoved();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            sleeping = false;
+        }
+        
+        if (running) {
+            audioTrack.play();
+        }
+    }
+    
+    private boolean anyStreamHasAudio() {
+        updateActive();
+        return !active.isEmpty();
+    }
+    
+    private void removeIdleStreams(long now) {
+        synchronized (lock) {
+            for (SparseArray<SpeakerStream> byServer : streamsByServer.values()) {
+                for (int i = byServer.size() - 1; i >= 0; i--) {
+                    SpeakerStream stream = byServer.valueAt(i);
+                    if (!stream.hasAudio() && now - stream.lastPacketMs > STREAM_IDLE_TIMEOUT_MS) {
+                        byServer.removeAt(i);
+                        stream.removed = true;
+                        removedSpeakers.add(stream);
+                    }
+                }
+            }
+        }
+        // Decodificadores liberados fuera del cerrojo que usa enqueue()
+        releaseRemoved();
+        decoderPool.evictIdle(now);
+    }
+    
+    private void releaseRemoved() {
+        String serverId;
+        while ((serverId = removedServers.poll()) != null) {
+            decoderPool.releaseServer(serverId);
+        }
+        SpeakerStream stream;
+        while ((stream = removedSpeakers.poll()) != null) {
+            decoderPool.release(stream.serverId, stream.session);
+        }
+    }
+    
+    private AudioTrack createAudioTrack() {
+        int minBuffer = AudioTrack.getMinBufferSize(sampleRate,
+            AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        int bufferSize = Math.max(minBuffer, frameSize * 2 * 2);
+        
+        AudioAttributes attributes = new AudioAttributes.Builder()
+            .setUsage(AudioAttributes.USAGE_VOICE_COMMUNICATION)
+            .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+            .build();
+        AudioFormat format = new AudioFormat.Builder()
+            .setSampleRate(sampleRate)
+            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+            .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+            .build();
+        
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return new AudioTrack.Builder()
+                .setAudioAttributes(attributes)
+                .setAudioFormat(format)
+                .setBufferSizeInBytes(bufferSize)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                .build();
+        }
+        return new AudioTrack(attributes, format, bufferSize,
+            AudioTrack.MODE_STREAM, AudioManager.AUDIO_SESSION_ID_GENERATE);
+    }
+}
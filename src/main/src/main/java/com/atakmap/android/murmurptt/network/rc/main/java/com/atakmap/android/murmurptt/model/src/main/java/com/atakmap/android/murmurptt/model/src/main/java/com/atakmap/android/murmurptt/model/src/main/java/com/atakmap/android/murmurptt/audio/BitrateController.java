@@ -0,0 +1,170 @@
+package com.atakmap.android.murmurptt.audio;
+
+import android.util.Log;
+
+/**
+ * Controlador adaptativo de tasa, complejidad y pérdida esperada del
+ * codificador Opus para una conexión.
+ *
+ * Las entradas son el RTT y la pérdida medidos, la congestión del envío, el
+ * ancho de banda máximo del servidor y el tiempo de codificación (carga de
+ * CPU). La tasa baja por pérdida o congestión, nunca por el RTT absoluto: un
+ * enlace por satélite de 600 ms sin pérdidas no está degradado. El aumento del
+ * RTT sobre su línea base (colas) llega como congestión desde la conexión.
+ * evaluate() recalcula la política como máximo cada EVALUATE_INTERVAL_MS
+ * y applyTo() aplica los cambios al codificador desde el thread de captura,
+ * que es su dueño. Cada decisión se registra en el log para ajustar la política.
+ */
+public class BitrateController {
+    
+    private static final String TAG = "BitrateController";
+    
+    public static final int MIN_BITRATE = 8000;
+    // Mínimo que admite Opus; solo se baja de MIN_BITRATE por el límite del servidor
+    private static final int OPUS_MIN_BITRATE = 500;
+    public static final int MAX_BITRATE = 40000;
+    public static final int DEFAULT_BITRATE = 24000;
+    public static final int DEFAULT_COMPLEXITY = 5;
+    public static final int DEFAULT_LOSS_PERCENT = 10;
+    
+    private static final int MIN_COMPLEXITY = 1;
+    // Por encima no mejora la voz de forma apreciable y consume batería
+    private static final int MAX_COMPLEXITY = 8;
+    private static final int MIN_LOSS_PERCENT = 5;
+    private static final int MAX_LOSS_PERCENT = 30;
+    private static final long EVALUATE_INTERVAL_MS = 2000;
+    
+    private static final float HIGH_LOSS_PERCENT = 8f;
+    private static final float LOW_LOSS_PERCENT = 2f;
+    // Fracción de la duración del paquete dedicada a codificar
+    private static final double HIGH_ENCODE_LOAD = 0.5;
+    private static final double LOW_ENCODE_LOAD = 0.15;
+    // IP + UDP + cifrado + cabecera de voz aproximada, por paquete
+    private static final int PACKET_OVERHEAD_BYTES = 20 + 8 + 4 + 5;
+    private static final int FRAME_MS = 20;
+    
+    private final String name;
+    
+    // Entradas
+    private int maxBandwidth = 0;
+    private int rttMs = -1;
+    private float lossPercent = 0;
+    private boolean congested = false;
+    private double encodeLoad = 0;
+    
+    // Decisiones
+    private int bitrate = DEFAULT_BITRATE;
+    private int complexity = DEFAULT_COMPLEXITY;
+    private int expectedLossPercent = DEFAULT_LOSS_PERCENT;
+    private boolean dirty = true;
+    private long lastEvaluateMs = 0;
+    private long decisions = 0;
+    
+    public BitrateController(String name) {
+        this.name = name;
+    }
+    
+    /**
+     * Ancho de banda máximo anunciado por el servidor en bits/s (0 = sin límite)
+     */
+    public synchronized void setMaxBandwidth(int bitsPerSecond) {
+        this.maxBandwidth = Math.max(0, bitsPerSecond);
+    }
+    
+    /**
+     * Último RTT y pérdida de subida medidos (rttMs negativo si no se conoce)
+     */
+    public synchronized void onNetworkStats(int rttMs, float lossPercent) {
+        this.rttMs = rttMs;
+        this.lossPercent = Math.max(0f, lossPercent);
+    }
+    
+    public synchronized void setCongested(boolean congested) {
+        this.congested = congested;
+    }
+    
+    /**
+     * Registrar el tiempo de codificación de un paquete de la duración indicada
+     */
+    public synchronized void onEncodeTime(long encodeNanos, long packetNanos) {
+        if (packetNanos <= 0) return;
+        double load = (double) encodeNanos / packetNanos;
+        encodeLoad += (load - encodeLoad) / 8;
+    }
+    
+    /**
+     * Recalcular la política si ha pasado el intervalo de evaluación
+     */
+    public synchronized void evaluate(long nowMs, int framesPerPacket) {
+        if (nowMs - lastEvaluateMs < EVALUATE_INTERVAL_MS) return;
+        lastEvaluateMs = nowMs;
+        
+        int newBitrate = bitrate;
+        if (lossPercent >= HIGH_LOSS_PERCENT || congested) {
+            newBitrate = bitrate * 3 / 4;
+        } else if (lossPercent < LOW_LOSS_PERCENT) {
+            newBitrate = bitrate + Math.max(1000, bitrate / 10);
+        }
+        
+        newBitrate = Math.max(MIN_BITRATE, Math.min(MAX_BITRATE, newBitrate));
+        // El límite del servidor se aplica el último: puede quedar por debajo de MIN_BITRATE
+        if (maxBandwidth > 0) {
+            newBitrate = Math.min(newBitrate, Math.max(OPUS_MIN_BITRATE, getBitrateBudget(framesPerPacket)));
+        }
+        
+        int newLoss = Math.max(MIN_LOSS_PERCENT,
+            Math.min(MAX_LOSS_PERCENT, (int) Math.ceil(lossPercent)));
+        
+        int newComplexity = complexity;
+        if (encodeLoad > HIGH_ENCODE_LOAD) {
+            newComplexity = Math.max(MIN_COMPLEXITY, complexity - 2);
+        } else if (encodeLoad < LOW_ENCODE_LOAD) {
+            newComplexity = Math.min(MAX_COMPLEXITY, complexity + 1);
+        }
+        
+        if (newBitrate != bitrate || newComplexity != complexity || newLoss != expectedLossPercent) {
+            Log.i(TAG, String.format("%s: bitrate %d -> %d, complejidad %d -> %d, pérdida %d%% -> %d%% "
+                + "(rtt=%dms pérdida=%.1f%% congestión=%b cpu=%.0f%% máx=%d tramas=%d)",
+                name, bitrate, newBitrate, complexity, newComplexity, expectedLossPercent, newLoss,
+                rttMs, lossPercent, congested, encodeLoad * 100, maxBandwidth, framesPerPacket));
+            bitrate = newBitrate;
+            complexity = newComplexity;
+            expectedLossPercent = newLoss;
+            dirty = true;
+            decisions++;
+        }
+    }
+    
+    /**
+     * Aplicar la configuración actual al codificador si ha cambiado o si force.
+     * Debe llamarse desde el thread dueño del codificador.
+     */
+    public synchronized void applyTo(OpusCodec codec, boolean force) {
+        if (!dirty && !force) return;
+        codec.setBitrate(bitrate);
+        codec.setComplexity(complexity);
+        codec.setPacketLossPercent(expectedLossPercent);
+        dirty = false;
+    }
+    
+    /**
+     * Tasa de audio que cabe en el máximo del servidor descontando cabeceras
+     */
+    private int getBitrateBudget(int framesPerPacket) {
+        int packetMs = Math.max(1, framesPerPacket) * FRAME_MS;
+        int packetsPerSecond = (1000 + packetMs - 1) / packetMs;
+        return maxBandwidth - packetsPerSecond * PACKET_OVERHEAD_BYTES * 8;
+    }
+    
+    public synchronized int getBitrate() { return bitrate; }
+    public synchronized int getComplexity() { return complexity; }
+    public synchronized int getExpectedLossPercent() { return expectedLossPercent; }
+    public synchronized double getEncodeLoad() { return encodeLoad; }
+    public synchronized long getDecisions() { return decisions; }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("bitrate=%d complexity=%d loss=%d%% cpu=%.0f%%",
+            bitrate, complexity, expectedLossPercent, encodeLoad * 100);
+    }
+}
@@ -0,0 +1,215 @@
+package com.atakmap.android.murmurptt.audio;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+
+/**
+ * Pool de decodificadores Opus, uno por hablante (servidor + sesión).
+ *
+ * Los decodificadores Opus tienen estado, así que cada hablante necesita el
+ * suyo. Se crean bajo demanda y se liberan al irse el usuario, por
+ * inactividad o, si se supera el límite de memoria nativa, en orden LRU. La
+ * memoria de cada decodificador incluye su estado Opus y sus buffers directos.
+ */
+public class DecoderPool {
+    
+    private static final String TAG = "DecoderPool";
+    
+    public static final long DEFAULT_MAX_NATIVE_BYTES = 1024 * 1024;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+    
+    private static class Entry {
+        final String serverId;
+        final int session;
+        final OpusCodec codec;
+        long lastUsedMs;
+        Entry prev;
+        Entry next;
+        
+        Entry(String serverId, int session, OpusCodec codec) {
+            this.serverId = serverId;
+            this.session = session;
+            this.codec = codec;
+        }
+    }
+    
+    private final int sampleRate;
+    private final int channels;
+    private final long decoderBytes;
+    private long maxNativeBytes;
+    private long idleTimeoutMs;
+    
+    private final HashMap<String, SparseArray<Entry>> entries = new HashMap<>();
+    // Lista LRU: head = más reciente, tail = menos reciente
+    private Entry head;
+    private Entry tail;
+    private int size = 0;
+    
+    // Estadísticas
+    private long created = 0;
+    private long evictedLru = 0;
+    private long evictedIdle = 0;
+    
+    public DecoderPool(int sampleRate, int channels) {
+        this(sampleRate, channels, DEFAULT_MAX_NATIVE_BYTES, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+    
+    public DecoderPool(int sampleRate, int channels, long maxNativeBytes, long idleTimeoutMs) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.maxNativeBytes = maxNativeBytes;
+        this.idleTimeoutMs = idleTimeoutMs;
+        
+        long bytes;
+        try {
+            bytes = OpusCodec.getDecoderSize(channels);
+        } catch (UnsatisfiedLinkError e) {
+            bytes = 0;
+        }
+        // Estimación si la librería nativa no informa el tamaño
+        if (bytes <= 0) {
+            bytes = 18 * 1024;
+        }
+        this.decoderBytes = bytes + OpusCodec.getDecoderBufferSize(channels);
+    }
+    
+    /**
+     * Obtener el decodificador de un hablante, creándolo si no existe
+     */
+    public synchronized OpusCodec get(String serverId, int session) {
+        SparseArray<Entry> byServer = entries.get(serverId);
+        Entry entry = byServer != null ? byServer.get(session) : null;
+        
+        if (entry == null) {
+            // Hacer sitio antes de crear el nuevo decodificador
+            while (size > 0 && (size + 1) * decoderBytes > maxNativeBytes) {
+                evictedLru++;
+                remove(tail);
+            }
+            
+            byServer = entries.get(serverId);
+            if (byServer == null) {
+                byServer = new SparseArray<>();
+                entries.put(serverId, byServer);
+            }
+            entry = new Entry(serverId, session, OpusCodec.createDecoderOnly(sampleRate, channels));
+            byServer.put(session, entry);
+            size++;
+            created++;
+        } else {
+            unlink(entry);
+        }
+        
+        linkFirst(entry);
+        entry.lastUsedMs = SystemClock.elapsedRealtime();
+        return entry.codec;
+    }
+    
+    /**
+     * Liberar el decodificador de un hablante
+     */
+    public synchronized void release(String serverId, int session) {
+        SparseArray<Entry> byServer = entries.get(serverId);
+        if (byServer == null) return;
+        Entry entry = byServer.get(session);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+    
+    /**
+     * Liberar todos los decodificadores de un servidor
+     */
+    public synchronized void releaseServer(String serverId) {
+        SparseArray<Entry> byServer = entries.get(serverId);
+        if (byServer == null) return;
+        for (int i = byServer.size() - 1; i >= 0; i--) {
+            remove(byServer.valueAt(i));
+        }
+    }
+    
+    /**
+     * Liberar decodificadores sin uso durante más del tiempo de inactividad
+     */
+    public synchronized void evictIdle(long nowMs) {
+        while (tail != null && nowMs - tail.lastUsedMs > idleTimeoutMs) {
+            evictedIdle++;
+            remove(tail);
+        }
+    }
+    
+    /**
+     * Liberar todos los decodificadores
+     */
+    public synchronized void destroy() {
+        while (tail != null) {
+            remove(tail);
+        }
+        entries.clear();
+    }
+    
+    public synchronized void setMaxNativeBytes(long maxNativeBytes) {
+        this.maxNativeBytes = maxNativeBytes;
+        while (size > 0 && size * decoderBytes > maxNativeBytes) {
+            evictedLru++;
+            remove(tail);
+        }
+    }
+    
+    public synchronized void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+    
+    public synchronized int getSize() { return size; }
+    public synchronized long getNativeBytes() { return size * decoderBytes; }
+    public synchronized long getMaxNativeBytes() { return maxNativeBytes; }
+    public synchronized long getCreated() { return created; }
+    public synchronized long getEvictedLru() { return evictedLru; }
+    public synchronized long getEvictedIdle() { return evictedIdle; }
+    
+    // ==================== MÉTODOS PRIVADOS ====================
+    
+    private void remove(Entry entry) {
+        unlink(entry);
+        SparseArray<Entry> byServer = entries.get(entry.serverId);
+        if (byServer != null) {
+            byServer.remove(entry.session);
+            if (byServer.size() == 0) {
+                entries.remove(entry.serverId);
+            }
+        }
+        entry.codec.destroy();
+        size--;
+        Log.d(TAG, "Decodificador liberado: " + entry.serverId + "/" + entry.session);
+    }
+    
+    private void linkFirst(Entry entry) {
+        entry.prev = null;
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        head = entry;
+        if (tail == null) {
+            tail = entry;
+        }
+    }
+    
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else if (head == entry) {
+            head = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        } else if (tail == entry) {
+            tail = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+}
@@ -0,0 +1,89 @@
+package com.atakmap.android.murmurptt.audio;
+
+/**
+ * Estadísticas de temporización de tramas: jitter entre tramas consecutivas,
+ * tramas tardías y tiempo de procesamiento por encima del periodo de trama.
+ */
+public class FrameTimingStats {
+    
+    private final long framePeriodNanos;
+    private final long lateThresholdNanos;
+    
+    private long frames = 0;
+    private long lastFrameNanos = 0;
+    private double jitterNanos = 0;
+    private long maxIntervalNanos = 0;
+    private long lateFrames = 0;
+    private long processingOverruns = 0;
+    private long maxProcessingNanos = 0;
+    
+    public FrameTimingStats(long framePeriodNanos) {
+        this.framePeriodNanos = framePeriodNanos;
+        // Una trama se considera tardía si llega con más de medio periodo de retraso
+        this.lateThresholdNanos = framePeriodNanos + framePeriodNanos / 2;
+    }
+    
+    /**
+     * Registrar la llegada de una trama
+     */
+    public synchronized void onFrame(long nowNanos) {
+        if (frames > 0) {
+            long interval = nowNanos - lastFrameNanos;
+            long deviation = Math.abs(interval - framePeriodNanos);
+            
+            // Estimador de jitter suavizado (RFC 3550)
+            jitterNanos += (deviation - jitterNanos) / 16.0;
+            
+            if (interval > maxIntervalNanos) {
+                maxIntervalNanos = interval;
+            }
+            if (interval > lateThresholdNanos) {
+                lateFrames++;
+            }
+        }
+        lastFrameNanos = nowNanos;
+        frames++;
+    }
+    
+    /**
+     * Registrar el tiempo empleado en procesar una trama
+     */
+    public synchronized void onProcessed(long processingNanos) {
+        if (processingNanos > maxProcessingNanos) {
+            maxProcessingNanos = processingNanos;
+        }
+        if (processingNanos > framePeriodNanos) {
+            processingOverruns++;
+        }
+    }
+    
+    public synchronized void reset() {
+        frames = 0;
+        lastFrameNanos = 0;
+        jitterNanos = 0;
+        maxIntervalNanos = 0;
+        lateFrames = 0;
+        processingOverruns = 0;
+        maxProcessingNanos = 0;
+    }
+    
+    public synchronized long getFrames() { return frames; }
+    public synchronized double getJitterMs() { return jitterNanos / 1e6; }
+    public synchronized double getMaxIntervalMs() { return maxIntervalNanos / 1e6; }
+    public synchronized long getLateFrames() { return lateFrames; }
+    public synchronized long getProcessingOverruns() { return processingOverruns; }
+    public synchronized double getMaxProcessingMs() { return maxProcessingNanos / 1e6; }
+    
+    /**
+     * Total de plazos de trama incumplidos (llegada tardía o procesamiento excesivo)
+     */
+    public synchronized long getDeadlineMisses() {
+        return lateFrames + processingOverruns;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("frames=%d jitter=%.2fms maxInterval=%.2fms late=%d overruns=%d",
+            frames, jitterNanos / 1e6, maxIntervalNanos / 1e6, lateFrames, processingOverruns);
+    }
+}
@@ -0,0 +1,323 @@
+package com.atakmap.android.murmurptt.audio;
+
+/**
+ * Buffer de jitter adaptativo de un hablante.
+ *
+ * Ordena los paquetes de voz por número de secuencia (unidades de 10 ms, como
+ * en el protocolo Mumble) en un anillo de slots preasignados. El retardo
+ * objetivo se calcula a partir del jitter de llegada medido (RFC 3550): crece
+ * en enlaces malos para evitar cortes y se reduce en enlaces buenos
+ * descartando el exceso acumulado.
+ *
+ * Ante un hueco poll() devuelve RESULT_MISSING y el llamante recupera la trama
+ * con FEC del paquete siguiente (peekNext) o la oculta con PLC, registrándolo
+ * con markRecovered() o markConcealed().
+ */
+public class JitterBuffer {
+    
+    public static final int SEQ_UNIT_MS = 10;
+    
+    public static final int RESULT_EMPTY = 0;
+    public static final int RESULT_BUFFERING = 1;
+    public static final int RESULT_PACKET = 2;
+    public static final int RESULT_MISSING = 3;
+    
+    private static final int CAPACITY = 64;
+    private static final int DEFAULT_SEQ_STEP = 2; // 20 ms
+    private static final int MAX_SEQ_STEP = 12; // 120 ms
+    private static final int MIN_DELAY_MS = 20;
+    private static final int MAX_DELAY_MS = 400;
+    private static final int SHRINK_AFTER_POLLS = 50;
+    // Medidas de llegada propias a partir de las cuales el jitter de red deja
+    // de fijar el retardo mínimo
+    private static final int OWN_JITTER_SAMPLES = 16;
+    
+    private static class Slot {
+        final byte[] data;
+        int length;
+        long seq;
+        boolean filled;
+        boolean terminator;
+        
+        Slot(int size) {
+            data = new byte[size];
+        }
+    }
+    
+    private final Slot[] slots;
+    
+    private long nextSeq = -1;
+    private long highestSeq = -1;
+    private int count = 0;
+    private int seqStep = DEFAULT_SEQ_STEP;
+    private boolean buffering = true;
+    private boolean terminatorQueued = false;
+    private int excessPolls = 0;
+    
+    // Estimación de jitter de llegada
+    private long lastArrivalNanos = 0;
+    private long lastArrivalSeq = -1;
+    private long lastDeltaSeq = -1;
+    private double jitterMs = 0;
+    private int jitterSamples = 0;
+    private int targetDelayMs = MIN_DELAY_MS + DEFAULT_SEQ_STEP * SEQ_UNIT_MS;
+    // Retardo mínimo según el jitter de red medido con los pings de la conexión
+    private int networkFloorMs = MIN_DELAY_MS;
+    
+    // Estadísticas
+    private long received = 0;
+    private long late = 0;
+    private long lost = 0;
+    private long underruns = 0;
+    private long dropped = 0;
+    private long recovered = 0;
+    private long concealed = 0;
+    
+    public JitterBuffer() {
+        this(AudioFramePool.MAX_PACKET_SIZE);
+    }
+    
+    public JitterBuffer(int maxPacketSize) {
+        slots = new Slot[CAPACITY];
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot(maxPacketSize);
+        }
+    }
+    
+    /**
+     * Insertar un paquete recibido. Devuelve false si se descarta (tardío o demasiado grande).
+     */
+    public synchronized boolean put(long seq, byte[] data, int offset, int length,
+                                    boolean terminator, long arrivalNanos) {
+        received++;
+        if (length > slots[0].data.length) {
+            dropped++;
+            return false;
+        }
+        
+        if (nextSeq < 0) {
+            nextSeq = seq;
+        } else if (seq < nextSeq && count > 0 && nextSeq - seq <= CAPACITY) {
+            late++;
+            return false;
+        } else if (seq < nextSeq || seq - nextSeq >= CAPACITY) {
+            // Salto mayor que el buffer, o secuencia hacia atrás con el buffer
+            // vacío (el emisor reinició la secuencia y se perdió el terminador):
+            // reiniciar el flujo
+            clear();
+            nextSeq = seq;
+        }
+        
+        updateJitter(seq, arrivalNanos);
+        
+        Slot slot = slots[(int) (seq % CAPACITY)];
+        if (slot.filled && slot.seq == seq) {
+            return false; // duplicado
+        }
+        if (!slot.filled) {
+            count++;
+        }
+        System.arraycopy(data, offset, slot.data, 0, length);
+        slot.length = length;
+        slot.seq = seq;
+        slot.filled = true;
+        slot.terminator = terminator;
+        
+        if (seq > highestSeq) {
+            highestSeq = seq;
+        }
+        if (terminator) {
+            terminatorQueued = true;
+        }
+        return true;
+    }
+    
+    /**
+     * Extraer el siguiente paquete en orden de secuencia, copiándolo en out.
+     * Devuelve RESULT_PACKET con la longitud en outLength[0], RESULT_MISSING si
+     * el paquete esperado se ha perdido, RESULT_BUFFERING mientras se acumula el
+     * retardo objetivo o RESULT_EMPTY si no hay nada que reproducir.
+     */
+    public synchronized int poll(byte[] out, int[] outLength) {
+        if (count == 0) {
+            if (!buffering && !terminatorQueued) {
+                underruns++;
+            }
+            buffering = true;
+            return RESULT_EMPTY;
+        }
+        
+        if (buffering) {
+            if (getBufferedMs() < targetDelayMs && !terminatorQueued) {
+                return RESULT_BUFFERING;
+            }
+            buffering = false;
+            excessPolls = 0;
+        }
+        
+        shrinkIfNeeded();
+        
+        Slot slot = slots[(int) (nextSeq % CAPACITY)];
+        if (!slot.filled || slot.seq != nextSeq) {
+            lost++;
+            nextSeq += seqStep;
+            return RESULT_MISSING;
+        }
+        
+        System.arraycopy(slot.data, 0, out, 0, slot.length);
+        outLength[0] = slot.length;
+        slot.filled = false;
+        count--;
+        nextSeq = slot.seq + seqStep;
+        
+        if (slot.terminator) {
+            // Fin de la ráfaga de voz: la siguiente empieza de cero
+            terminatorQueued = false;
+            if (count == 0) {
+                nextSeq = -1;
+                highestSeq = -1;
+                buffering = true;
+                lastArrivalSeq = -1;
+            }
+        }
+        return RESULT_PACKET;
+    }
+    
+    /**
+     * Copiar en out el siguiente paquete esperado sin extraerlo, para decodificar
+     * su FEC tras un RESULT_MISSING. Devuelve false si tampoco ha llegado.
+     */
+    public synchronized boolean peekNext(byte[] out, int[] outLength) {
+        if (count == 0 || nextSeq < 0) return false;
+        Slot slot = slots[(int) (nextSeq % CAPACITY)];
+        if (!slot.filled || slot.seq != nextSeq) return false;
+        
+        System.arraycopy(slot.data, 0, out, 0, slot.length);
+        outLength[0] = slot.length;
+        return true;
+    }
+    
+    /**
+     * Duración en ms de la trama perdida del último RESULT_MISSING
+     */
+    public synchronized int getFrameMs() {
+        return seqStep * SEQ_UNIT_MS;
+    }
+    
+    /**
+     * Registrar una trama perdida reconstruida con FEC
+     */
+    public synchronized void markRecovered() {
+        recovered++;
+    }
+    
+    /**
+     * Registrar una trama perdida ocultada con PLC
+     */
+    public synchronized void markConcealed() {
+        concealed++;
+    }
+    
+    /**
+     * Duración aproximada de audio almacenado
+     */
+    public synchronized int getBufferedMs() {
+        if (count == 0) return 0;
+        return (int) (highestSeq + seqStep - nextSeq) * SEQ_UNIT_MS;
+    }
+    
+    public synchronized boolean isIdle() {
+        return count == 0;
+    }
+    
+    public synchronized void clear() {
+        for (Slot slot : slots) {
+            slot.filled = false;
+        }
+        count = 0;
+        nextSeq = -1;
+        highestSeq = -1;
+        buffering = true;
+        terminatorQueued = false;
+        lastArrivalSeq = -1;
+        lastDeltaSeq = -1;
+    }
+    
+    private void updateJitter(long seq, long arrivalNanos) {
+        if (lastArrivalSeq >= 0 && seq > lastArrivalSeq) {
+            long deltaSeq = seq - lastArrivalSeq;
+            // Paso de secuencia por paquete: dos saltos iguales seguidos o uno menor
+            if (deltaSeq <= MAX_SEQ_STEP && (deltaSeq == lastDeltaSeq || deltaSeq < seqStep)) {
+                seqStep = (int) deltaSeq;
+            }
+            lastDeltaSeq = deltaSeq;
+            
+            double arrivalMs = (arrivalNanos - lastArrivalNanos) / 1e6;
+            double d = arrivalMs - deltaSeq * SEQ_UNIT_MS;
+            jitterMs += (Math.abs(d) - jitterMs) / 16.0;
+            jitterSamples++;
+            
+            int target = (int) (seqStep * SEQ_UNIT_MS + 3 * jitterMs);
+            targetDelayMs = Math.max(getFloorMs(), Math.min(MAX_DELAY_MS, target));
+        }
+        if (seq > lastArrivalSeq) {
+            lastArrivalSeq = seq;
+            lastArrivalNanos = arrivalNanos;
+        }
+    }
+    
+    /**
+     * Reducir el retardo cuando el buffer se mantiene por encima del objetivo
+     */
+    private void shrinkIfNeeded() {
+        int excessMs = getBufferedMs() - targetDelayMs;
+        if (excessMs < seqStep * SEQ_UNIT_MS * 2) {
+            excessPolls = 0;
+            return;
+        }
+        if (++excessPolls < SHRINK_AFTER_POLLS) {
+            return;
+        }
+        excessPolls = 0;
+        
+        Slot slot = slots[(int) (nextSeq % CAPACITY)];
+        if (slot.filled && slot.seq == nextSeq && !slot.terminator) {
+            slot.filled = false;
+            count--;
+            dropped++;
+        }
+        nextSeq += seqStep;
+    }
+    
+    /**
+     * Jitter de red de la conexión estimado con los pings. Fija el retardo
+     * mínimo de un hablante nuevo para que no tenga que aprenderlo con cortes;
+     * tras OWN_JITTER_SAMPLES llegadas manda el jitter medido por el buffer.
+     */
+    public synchronized void setNetworkJitterMs(double networkJitterMs) {
+        int floor = MIN_DELAY_MS + (int) Math.max(0, networkJitterMs);
+        networkFloorMs = Math.min(MAX_DELAY_MS / 2, floor);
+        targetDelayMs = Math.max(getFloorMs(), targetDelayMs);
+    }
+    
+    private int getFloorMs() {
+        return jitterSamples < OWN_JITTER_SAMPLES ? networkFloorMs : MIN_DELAY_MS;
+    }
+    
+    public synchronized double getJitterMs() { return jitterMs; }
+    public synchronized int getTargetDelayMs() { return targetDelayMs; }
+    public synchronized long getReceived() { return received; }
+    public synchronized long getLate() { return late; }
+    public synchronized long getLost() { return lost; }
+    public synchronized long getUnderruns() { return underruns; }
+    public synchronized long getDropped() { return dropped; }
+    public synchronized long getRecovered() { return recovered; }
+    public synchronized long getConcealed() { return concealed; }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("target=%dms jitter=%.1fms buffered=%dms lost=%d recovered=%d "
+            + "concealed=%d late=%d underruns=%d",
+            targetDelayMs, jitterMs, getBufferedMs(), lost, recovered, concealed, late, underruns);
+    }
+}
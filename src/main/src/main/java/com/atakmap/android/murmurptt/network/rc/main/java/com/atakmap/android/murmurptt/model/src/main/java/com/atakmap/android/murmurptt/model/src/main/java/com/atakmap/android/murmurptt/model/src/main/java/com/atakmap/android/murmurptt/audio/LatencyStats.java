@@ -0,0 +1,83 @@
+package com.atakmap.android.murmurptt.audio;
+
+import java.util.Arrays;
+
+/**
+ * Estadísticas de una latencia medida en milisegundos (p. ej. pulsación PTT
+ * hasta el primer paquete enviado): última, mínima, media, máxima, percentil
+ * 95 sobre las últimas muestras y número de muestras por encima del objetivo.
+ */
+public class LatencyStats {
+    
+    private static final int WINDOW = 64;
+    
+    private final long targetMs;
+    private final long[] window = new long[WINDOW];
+    private int windowCount = 0;
+    private int windowNext = 0;
+    
+    private long samples = 0;
+    private long lastMs = -1;
+    private long minMs = Long.MAX_VALUE;
+    private long maxMs = 0;
+    private long totalMs = 0;
+    private long overTarget = 0;
+    
+    public LatencyStats(long targetMs) {
+        this.targetMs = targetMs;
+    }
+    
+    public synchronized void record(long latencyMs) {
+        window[windowNext] = latencyMs;
+        windowNext = (windowNext + 1) % WINDOW;
+        windowCount = Math.min(windowCount + 1, WINDOW);
+        
+        samples++;
+        lastMs = latencyMs;
+        totalMs += latencyMs;
+        if (latencyMs < minMs) {
+            minMs = latencyMs;
+        }
+        if (latencyMs > maxMs) {
+            maxMs = latencyMs;
+        }
+        if (latencyMs > targetMs) {
+            overTarget++;
+        }
+    }
+    
+    /**
+     * Percentil 95 de las últimas muestras (-1 si no hay)
+     */
+    public synchronized long getP95Ms() {
+        if (windowCount == 0) return -1;
+        long[] sorted = Arrays.copyOf(window, windowCount);
+        Arrays.sort(sorted);
+        return sorted[Math.min(windowCount - 1, (int) Math.ceil(windowCount * 0.95) - 1)];
+    }
+    
+    public synchronized void reset() {
+        windowCount = 0;
+        windowNext = 0;
+        samples = 0;
+        lastMs = -1;
+        minMs = Long.MAX_VALUE;
+        maxMs = 0;
+        totalMs = 0;
+        overTarget = 0;
+    }
+    
+    public long getTargetMs() { return targetMs; }
+    public synchronized long getSamples() { return samples; }
+    public synchronized long getLastMs() { return lastMs; }
+    public synchronized long getMinMs() { return samples > 0 ? minMs : -1; }
+    public synchronized long getMaxMs() { return maxMs; }
+    public synchronized double getMeanMs() { return samples > 0 ? (double) totalMs / samples : 0; }
+    public synchronized long getOverTarget() { return overTarget; }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d last=%dms min=%dms mean=%.1fms p95=%dms max=%dms >%dms=%d",
+            samples, lastMs, getMinMs(), getMeanMs(), getP95Ms(), maxMs, targetMs, overTarget);
+    }
+}
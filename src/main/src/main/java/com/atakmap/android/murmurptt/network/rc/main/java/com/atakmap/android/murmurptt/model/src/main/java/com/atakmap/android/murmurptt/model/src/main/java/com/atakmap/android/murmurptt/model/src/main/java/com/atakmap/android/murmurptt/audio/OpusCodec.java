@@ -2,39 +2,284 @@ package com.atakmap.android.murmurptt.audio;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
 /**
- * Wrapper JNI para codec Opus
+ * Wrapper JNI para codec Opus.
+ *
+ * Las entradas nativas (src/main/cpp) trabajan sobre buffers directos: el
+ * código nativo lee y escribe en la memoria del buffer sin copias de arrays
+ * JNI ni asignaciones. Los métodos con arrays son envoltorios que copian a
+ * través de buffers directos internos; solo los métodos con ByteBuffer y
+ * ShortBuffer evitan toda copia.
+ *
+ * Para recuperar pérdidas el codificador puede incluir FEC en banda (una copia
+ * de baja tasa de la trama anterior) y el decodificador ofrece decodeFec() para
+ * reconstruir una trama perdida a partir del paquete siguiente y decodeLost()
+ * para ocultarla (PLC) cuando ese paquete tampoco está.
  */
 public class OpusCodec {
     
     private static final String TAG = "OpusCodec";
     
+    // Tamaño máximo recomendado de paquete Opus
+    public static final int MAX_PACKET_SIZE = 4000;
+    // 120 ms a 48 kHz, la trama Opus más larga
+    public static final int MAX_FRAME_SIZE = 5760;
+    // Longitud máxima de un paquete de silencio DTX
+    public static final int DTX_MAX_BYTES = 2;
+    
     private long encoder;
     private long decoder;
     private int sampleRate;
     private int channels;
     
+    // Buffers directos internos para los envoltorios con arrays
+    private final ShortBuffer encodePcm;
+    private final ByteBuffer encodeOut;
+    private final ByteBuffer decodeIn;
+    private final ShortBuffer decodePcm;
+    
     static {
         try {
-            System.loadLibrary("opus");
+            System.loadLibrary("murmurptt_opus");
         } catch (UnsatisfiedLinkError e) {
             Log.e(TAG, "No se pudo cargar librería Opus", e);
         }
     }
     
     public OpusCodec(int sampleRate, int channels) {
+        this(sampleRate, channels, true, true);
+    }
+    
+    private OpusCodec(int sampleRate, int channels, boolean withEncoder, boolean withDecoder) {
         this.sampleRate = sampleRate;
         this.channels = channels;
-        this.encoder = createEncoder(sampleRate, channels);
-        this.decoder = createDecoder(sampleRate, channels);
+        
+        if (withEncoder) {
+            this.encoder = createEncoder(sampleRate, channels);
+            this.encodePcm = allocateDirectPcm(MAX_FRAME_SIZE * channels);
+            this.encodeOut = allocateDirectPacket(MAX_PACKET_SIZE);
+        } else {
+            this.encodePcm = null;
+            this.encodeOut = null;
+        }
+        
+        if (withDecoder) {
+            this.decoder = createDecoder(sampleRate, channels);
+            this.decodeIn = allocateDirectPacket(MAX_PACKET_SIZE);
+            this.decodePcm = allocateDirectPcm(MAX_FRAME_SIZE * channels);
+        } else {
+            this.decodeIn = null;
+            this.decodePcm = null;
+        }
+    }
+    
+    /**
+     * Crear un codec solo con codificador
+     */
+    public static OpusCodec createEncoderOnly(int sampleRate, int channels) {
+        return new OpusCodec(sampleRate, channels, true, false);
+    }
+    
+    /**
+     * Crear un codec solo con decodificador (un decodificador por hablante)
+     */
+    public static OpusCodec createDecoderOnly(int sampleRate, int channels) {
+        return new OpusCodec(sampleRate, channels, false, true);
+    }
+    
+    /**
+     * Tamaño en bytes del estado nativo de un decodificador
+     */
+    public static int getDecoderSize(int channels) {
+        return nativeGetDecoderSize(channels);
+    }
+    
+    /**
+     * Bytes de los buffers directos internos de un codec solo decodificador
+     */
+    public static int getDecoderBufferSize(int channels) {
+        return MAX_PACKET_SIZE + MAX_FRAME_SIZE * channels * 2;
+    }
+    
+    // ==================== CONTROL DEL CODIFICADOR ====================
+    
+    /**
+     * Tasa objetivo en bits/s (OPUS_SET_BITRATE)
+     */
+    public boolean setBitrate(int bitsPerSecond) {
+        if (encoder == 0) return false;
+        return nativeSetBitrate(encoder, bitsPerSecond) == 0;
+    }
+    
+    /**
+     * Complejidad computacional del codificador (OPUS_SET_COMPLEXITY, 0-10)
+     */
+    public boolean setComplexity(int complexity) {
+        if (encoder == 0) return false;
+        int clamped = Math.max(0, Math.min(10, complexity));
+        return nativeSetComplexity(encoder, clamped) == 0;
+    }
+    
+    /**
+     * Activar FEC en banda (OPUS_SET_INBAND_FEC). Solo tiene efecto si además
+     * se indica un porcentaje de pérdidas esperado mayor que cero.
+     */
+    public boolean setInbandFec(boolean enabled) {
+        if (encoder == 0) return false;
+        return nativeSetInbandFec(encoder, enabled) == 0;
+    }
+    
+    /**
+     * Porcentaje de pérdidas esperado (OPUS_SET_PACKET_LOSS_PERC, 0-100)
+     */
+    public boolean setPacketLossPercent(int percent) {
+        if (encoder == 0) return false;
+        int clamped = Math.max(0, Math.min(100, percent));
+        return nativeSetPacketLossPerc(encoder, clamped) == 0;
     }
     
+    /**
+     * Transmisión discontinua (OPUS_SET_DTX). En silencio el codificador
+     * produce paquetes de DTX_MAX_BYTES o menos; el primero cierra la ráfaga y
+     * el resto no es necesario enviarlo.
+     */
+    public boolean setDtx(boolean enabled) {
+        if (encoder == 0) return false;
+        return nativeSetDtx(encoder, enabled) == 0;
+    }
+    
+    /**
+     * Crear un buffer directo de muestras PCM en orden nativo
+     */
+    public static ShortBuffer allocateDirectPcm(int samples) {
+        return ByteBuffer.allocateDirect(samples * 2)
+            .order(ByteOrder.nativeOrder())
+            .asShortBuffer();
+    }
+    
+    /**
+     * Crear un buffer directo para paquetes Opus
+     */
+    public static ByteBuffer allocateDirectPacket(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+    
+    // ==================== BUFFERS DIRECTOS ====================
+    
+    /**
+     * Codificar frameSize muestras desde la posición de pcm hacia la posición de out.
+     * Avanza ambas posiciones y devuelve la longitud codificada (negativa si hay error).
+     */
+    public int encode(ShortBuffer pcm, int frameSize, ByteBuffer out) {
+        if (encoder == 0) return -1;
+        checkDirect(pcm.isDirect() && out.isDirect());
+        
+        int samples = frameSize * channels;
+        if (pcm.remaining() < samples) {
+            throw new IllegalArgumentException("PCM insuficiente: " + pcm.remaining() + " < " + samples);
+        }
+        
+        int len = nativeEncodeDirect(encoder, pcm, pcm.position(), frameSize,
+                                     out, out.position(), out.remaining());
+        if (len > 0) {
+            pcm.position(pcm.position() + samples);
+            out.position(out.position() + len);
+        }
+        return len;
+    }
+    
+    /**
+     * Decodificar length bytes desde la posición de in hacia la posición de pcm.
+     * Avanza ambas posiciones y devuelve las muestras por canal decodificadas
+     * (negativo si hay error).
+     */
+    public int decode(ByteBuffer in, int length, ShortBuffer pcm, int frameSize) {
+        if (decoder == 0) return -1;
+        checkDirect(in.isDirect() && pcm.isDirect());
+        checkPacket(in, length);
+        
+        int maxFrame = Math.min(frameSize, pcm.remaining() / channels);
+        int decoded = nativeDecodeDirect(decoder, in, in.position(), length,
+                                         pcm, pcm.position(), maxFrame, false);
+        if (decoded > 0) {
+            in.position(in.position() + length);
+            pcm.position(pcm.position() + decoded * channels);
+        }
+        return decoded;
+    }
+    
+    /**
+     * Reconstruir la trama perdida anterior a partir de los datos FEC del
+     * paquete en la posición de in. frameSize debe ser exactamente la duración
+     * perdida. No avanza in: el paquete se decodifica después normalmente.
+     */
+    public int decodeFec(ByteBuffer in, int length, ShortBuffer pcm, int frameSize) {
+        if (decoder == 0) return -1;
+        checkDirect(in.isDirect() && pcm.isDirect());
+        checkPacket(in, length);
+        if (pcm.remaining() < frameSize * channels) return -1;
+        
+        int decoded = nativeDecodeDirect(decoder, in, in.position(), length,
+                                         pcm, pcm.position(), frameSize, true);
+        if (decoded > 0) {
+            pcm.position(pcm.position() + decoded * channels);
+        }
+        return decoded;
+    }
+    
+    /**
+     * Ocultar una trama perdida (PLC) extrapolando el estado del decodificador
+     */
+    public int decodeLost(ShortBuffer pcm, int frameSize) {
+        if (decoder == 0) return -1;
+        checkDirect(pcm.isDirect());
+        if (pcm.remaining() < frameSize * channels) return -1;
+        
+        int decoded = nativeDecodeDirect(decoder, null, 0, 0,
+                                         pcm, pcm.position(), frameSize, false);
+        if (decoded > 0) {
+            pcm.position(pcm.position() + decoded * channels);
+        }
+        return decoded;
+    }
+    
+    // ==================== ARRAYS ====================
+    
     /**
      * Codificar PCM a Opus
      */
     public byte[] encode(short[] pcmData, int frameSize) {
         if (encoder == 0) return null;
-        return nativeEncode(encoder, pcmData, frameSize);
+        
+        encodeOut.clear();
+        int len = encode(pcmData, frameSize, encodeOut);
+        if (len < 0) return null;
+        
+        byte[] result = new byte[len];
+        encodeOut.flip();
+        encodeOut.get(result);
+        return result;
+    }
+    
+    /**
+     * Codificar PCM a Opus sobre un buffer del llamante, sin asignar memoria.
+     * Devuelve la longitud codificada o un valor negativo en caso de error.
+     */
+    public int encode(short[] pcmData, int frameSize, byte[] out, int offset) {
+        if (encoder == 0) return -1;
+        
+        encodeOut.clear();
+        encodeOut.limit(Math.min(MAX_PACKET_SIZE, out.length - offset));
+        int len = encode(pcmData, frameSize, encodeOut);
+        if (len > 0) {
+            encodeOut.flip();
+            encodeOut.get(out, offset, len);
+        }
+        return len;
     }
     
     /**
@@ -42,7 +287,65 @@ public class OpusCodec {
      */
     public short[] decode(byte[] opusData, int frameSize) {
         if (decoder == 0) return null;
-        return nativeDecode(decoder, opusData, frameSize);
+        
+        short[] pcm = new short[frameSize * channels];
+        int decoded = decode(opusData, 0, opusData.length, pcm, 0);
+        if (decoded < 0) return null;
+        
+        if (decoded * channels == pcm.length) return pcm;
+        short[] result = new short[decoded * channels];
+        System.arraycopy(pcm, 0, result, 0, result.length);
+        return result;
+    }
+    
+    /**
+     * Decodificar Opus a PCM sobre un array del llamante, sin asignar memoria.
+     * Devuelve las muestras por canal decodificadas o un valor negativo en caso de error.
+     */
+    public int decode(byte[] opusData, int offset, int length, short[] pcm, int pcmOffset) {
+        if (decoder == 0) return -1;
+        if (length > MAX_PACKET_SIZE) return -1;
+        
+        decodeIn.clear();
+        decodeIn.put(opusData, offset, length);
+        decodeIn.flip();
+        
+        decodePcm.clear();
+        decodePcm.limit(Math.min(decodePcm.capacity(), pcm.length - pcmOffset));
+        int decoded = decode(decodeIn, length, decodePcm, MAX_FRAME_SIZE);
+        return copyDecoded(decoded, pcm, pcmOffset);
+    }
+    
+    /**
+     * Reconstruir con FEC la trama perdida anterior a opusData sobre un array
+     * del llamante. frameSize debe ser la duración perdida en muestras por canal.
+     */
+    public int decodeFec(byte[] opusData, int offset, int length, short[] pcm, int pcmOffset,
+                         int frameSize) {
+        if (decoder == 0) return -1;
+        if (length > MAX_PACKET_SIZE || frameSize > MAX_FRAME_SIZE) return -1;
+        if (pcm.length - pcmOffset < frameSize * channels) return -1;
+        
+        decodeIn.clear();
+        decodeIn.put(opusData, offset, length);
+        decodeIn.flip();
+        
+        decodePcm.clear();
+        int decoded = decodeFec(decodeIn, length, decodePcm, frameSize);
+        return copyDecoded(decoded, pcm, pcmOffset);
+    }
+    
+    /**
+     * Ocultar una trama perdida (PLC) sobre un array del llamante
+     */
+    public int decodeLost(short[] pcm, int pcmOffset, int frameSize) {
+        if (decoder == 0) return -1;
+        if (frameSize > MAX_FRAME_SIZE) return -1;
+        if (pcm.length - pcmOffset < frameSize * channels) return -1;
+        
+        decodePcm.clear();
+        int decoded = decodeLost(decodePcm, frameSize);
+        return copyDecoded(decoded, pcm, pcmOffset);
     }
     
     public void destroy() {
@@ -56,11 +359,48 @@ public class OpusCodec {
         }
     }
     
+    private int encode(short[] pcmData, int frameSize, ByteBuffer out) {
+        int samples = frameSize * channels;
+        encodePcm.clear();
+        encodePcm.put(pcmData, 0, samples);
+        encodePcm.flip();
+        return encode(encodePcm, frameSize, out);
+    }
+    
+    private int copyDecoded(int decoded, short[] pcm, int pcmOffset) {
+        if (decoded > 0) {
+            decodePcm.flip();
+            decodePcm.get(pcm, pcmOffset, decoded * channels);
+        }
+        return decoded;
+    }
+    
+    private static void checkDirect(boolean direct) {
+        if (!direct) {
+            throw new IllegalArgumentException("Se requieren buffers directos");
+        }
+    }
+    
+    private static void checkPacket(ByteBuffer in, int length) {
+        if (length < 0 || in.remaining() < length) {
+            throw new IllegalArgumentException("Paquete insuficiente: " + in.remaining() + " < " + length);
+        }
+    }
+    
     // Métodos nativos
     private native long createEncoder(int sampleRate, int channels);
     private native long createDecoder(int sampleRate, int channels);
-    private native byte[] nativeEncode(long encoder, short[] pcm, int frameSize);
-    private native short[] nativeDecode(long decoder, byte[] opus, int frameSize);
+    private native int nativeEncodeDirect(long encoder, ShortBuffer pcm, int pcmOffset, int frameSize,
+                                          ByteBuffer out, int outOffset, int maxLength);
+    private native int nativeDecodeDirect(long decoder, ByteBuffer opus, int opusOffset, int length,
+                                          ShortBuffer pcm, int pcmOffset, int frameSize,
+                                          boolean fec);
+    private native int nativeSetBitrate(long encoder, int bitsPerSecond);
+    private native int nativeSetComplexity(long encoder, int complexity);
+    private native int nativeSetInbandFec(long encoder, boolean enabled);
+    private native int nativeSetPacketLossPerc(long encoder, int percent);
+    private native int nativeSetDtx(long encoder, boolean enabled);
     private native void destroyEncoder(long encoder);
     private native void destroyDecoder(long decoder);
+    private static native int nativeGetDecoderSize(int channels);
 }
@@ -0,0 +1,118 @@
+package com.atakmap.android.murmurptt.audio;
+
+/**
+ * Detector de actividad de voz por energía para el modo VOX.
+ *
+ * Compara la energía de cada trama con un mínimo absoluto y con el ruido de
+ * fondo estimado, que baja rápido y sube despacio. La voz se confirma tras
+ * ATTACK_FRAMES tramas seguidas por encima del umbral y se mantiene durante el
+ * hangover posterior a la última trama con voz para no cortar finales de
+ * palabra. Se usa solo desde el thread de captura y no asigna memoria.
+ */
+public class VoiceActivityDetector {
+    
+    public static final int DEFAULT_HANGOVER_MS = 400;
+    public static final float DEFAULT_THRESHOLD_DB = 9f;
+    
+    private static final float MIN_SPEECH_DBFS = -50f;
+    private static final float SILENCE_DBFS = -96f;
+    private static final int ATTACK_FRAMES = 2;
+    // Tramas iniciales usadas solo para medir el ruido de fondo
+    private static final int CALIBRATION_FRAMES = 5;
+    // Adaptación del ruido de fondo por trama
+    private static final float NOISE_FALL = 0.5f;
+    private static final float NOISE_RISE = 0.02f;
+    private static final float NOISE_RISE_SPEECH = 0.002f;
+    
+    private final int frameMs;
+    private volatile float thresholdDb = DEFAULT_THRESHOLD_DB;
+    private volatile int hangoverMs = DEFAULT_HANGOVER_MS;
+    
+    private float noiseDb = SILENCE_DBFS;
+    private float lastEnergyDb = SILENCE_DBFS;
+    private int calibrationFrames = 0;
+    private int attackFrames = 0;
+    private int hangoverFrames = 0;
+    private boolean active = false;
+    
+    public VoiceActivityDetector(int frameMs) {
+        this.frameMs = frameMs;
+    }
+    
+    /**
+     * Analizar una trama. Devuelve true mientras haya voz o dure el hangover.
+     */
+    public boolean process(short[] pcm, int length) {
+        long sum = 0;
+        for (int i = 0; i < length; i++) {
+            int s = pcm[i];
+            sum += s * s;
+        }
+        double meanSquare = length > 0 ? (double) sum / length : 0;
+        float db = meanSquare > 0
+            ? (float) (10 * Math.log10(meanSquare / (32768.0 * 32768.0)))
+            : SILENCE_DBFS;
+        lastEnergyDb = db;
+        
+        if (calibrationFrames < CALIBRATION_FRAMES) {
+            noiseDb = calibrationFrames == 0 ? db : Math.min(noiseDb, db);
+            calibrationFrames++;
+            return false;
+        }
+        
+        boolean speech = db > MIN_SPEECH_DBFS && db > noiseDb + thresholdDb;
+        
+        // El ruido de fondo se adapta muy despacio durante la voz para
+        // recuperarse si el entorno se vuelve más ruidoso (vehículos)
+        if (db < noiseDb) {
+            noiseDb += (db - noiseDb) * NOISE_FALL;
+        } else {
+            noiseDb += (db - noiseDb) * (speech ? NOISE_RISE_SPEECH : NOISE_RISE);
+        }
+        
+        if (speech) {
+            if (++attackFrames >= ATTACK_FRAMES) {
+                active = true;
+                hangoverFrames = Math.max(1, hangoverMs / frameMs);
+            }
+        } else {
+            attackFrames = 0;
+            if (active && --hangoverFrames <= 0) {
+                active = false;
+            }
+        }
+        return active;
+    }
+    
+    /**
+     * Reiniciar el estado al abrir el micrófono (vuelve a medir el ruido de fondo)
+     */
+    public void reset() {
+        noiseDb = SILENCE_DBFS;
+        lastEnergyDb = SILENCE_DBFS;
+        calibrationFrames = 0;
+        attackFrames = 0;
+        hangoverFrames = 0;
+        active = false;
+    }
+    
+    /**
+     * Margen en dB sobre el ruido de fondo para considerar voz
+     */
+    public void setThresholdDb(float thresholdDb) {
+        this.thresholdDb = Math.max(0f, thresholdDb);
+    }
+    
+    /**
+     * Tiempo que se mantiene abierto tras la última trama con voz
+     */
+    public void setHangoverMs(int hangoverMs) {
+        this.hangoverMs = Math.max(frameMs, hangoverMs);
+    }
+    
+    public float getThresholdDb() { return thresholdDb; }
+    public int getHangoverMs() { return hangoverMs; }
+    public boolean isActive() { return active; }
+    public float getNoiseDb() { return noiseDb; }
+    public float getLastEnergyDb() { return lastEnergyDb; }
+}
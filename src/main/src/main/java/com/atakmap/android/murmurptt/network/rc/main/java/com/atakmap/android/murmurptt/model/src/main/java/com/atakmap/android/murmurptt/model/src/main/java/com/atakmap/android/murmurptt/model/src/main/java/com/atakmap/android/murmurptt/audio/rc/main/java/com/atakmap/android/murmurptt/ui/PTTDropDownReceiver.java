@@ -5,7 +5,9 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageButton;
@@ -33,6 +35,11 @@ public class PTTDropDownReceiver extends DropDownReceiver implements PTTService.
     public static final String PTT_BUTTON_DOWN = "com.atakmap.android.murmurptt.PTT_DOWN";
     public static final String PTT_BUTTON_UP = "com.atakmap.android.murmurptt.PTT_UP";
     
+    // Cambios de usuario que afectan a la lista (nombre, canal, silencios)
+    private static final int USER_LIST_CHANGES = MurmurUser.CHANGED_NAME
+        | MurmurUser.CHANGED_CHANNEL | MurmurUser.CHANGED_MUTE | MurmurUser.CHANGED_DEAF
+        | MurmurUser.CHANGED_SELF_MUTE | MurmurUser.CHANGED_SELF_DEAF;
+    
     private Context pluginContext;
     private View mainView;
     private PTTService pttService;
@@ -67,7 +74,7 @@ public class PTTDropDownReceiver extends DropDownReceiver implements PTTService.
         pttButton.setOnTouchListener((v, event) -> {
             switch (event.getAction()) {
                 case MotionEvent.ACTION_DOWN:
-                    startTransmission();
+                    startTransmission(event.getEventTime());
                     return true;
                 case MotionEvent.ACTION_UP:
                 case MotionEvent.ACTION_CANCEL:
@@ -87,7 +94,7 @@ public class PTTDropDownReceiver extends DropDownReceiver implements PTTService.
         if (action.equals(SHOW_PTT)) {
             showDropDown(mainView, HALF_WIDTH, FULL_HEIGHT, true, false);
         } else if (action.equals(PTT_BUTTON_DOWN)) {
-            startTransmission();
+            startTransmission(SystemClock.uptimeMillis());
         } else if (action.equals(PTT_BUTTON_UP)) {
             stopTransmission();
         }
@@ -100,7 +107,7 @@ public class PTTDropDownReceiver extends DropDownReceiver implements PTTService.
         }
     }
     
-    private void startTransmission() {
+    private void startTransmission(long pressUptimeMs) {
         if (!serviceBound || pttService == null) return;
         if (isTransmitting) return;
         
@@ -117,7 +124,7 @@ public class PTTDropDownReceiver extends DropDownReceiver implements PTTService.
         statusText.setText("TRANSMITIENDO...");
         statusText.setTextColor(pluginContext.getColor(R.color.ptt_transmitting));
         
-        pttService.startTransmission(serverId, channel);
+        pttService.startTransmission(serverId, channel, pressUptimeMs);
         isTransmitting = true;
     }
     
@@ -230,12 +237,17 @@ public class PTTDropDownReceiver extends DropDownReceiver implements PTTService.
     }
     
     @Override
-    public void onAudioReceived(String serverId, byte[] audioData, MurmurUser from) {
-        // Actualizar indicador visual de quién habla
-        mainView.post(() -> {
-            from.updateActivity();
-            updateUsersList(serverId);
-        });
+    public void onUserChanged(String serverId, MurmurUser user, int changes) {
+        if ((changes & USER_LIST_CHANGES) != 0) {
+            mainView.post(() -> updateUsersList(serverId));
+        }
+    }
+    
+    @Override
+    public void onAudioReceived(String serverId, MurmurUser from, boolean terminator) {
+        // Actualizar indicador visual de quién habla (la actividad ya la
+        // registró la conexión al recibir el paquete)
+        mainView.post(() -> updateUsersList(serverId));
     }
     
     @Override
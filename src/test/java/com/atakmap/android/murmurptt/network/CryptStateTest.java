@@ -0,0 +1,246 @@
+package com.atakmap.android.murmurptt.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * CryptState: vectores OCB2-AES128, reconstrucción del IV (en orden, tardío,
+ * perdido, con vuelta del byte bajo) y rechazo de repeticiones.
+ */
+public class CryptStateTest {
+    
+    private static final byte[] KEY = range(16);
+    private static final byte[] SERVER_NONCE = new byte[16];
+    
+    private CryptState sender;
+    private CryptState receiver;
+    
+    @Before
+    public void setUp() throws Exception {
+        // Byte bajo del IV en 0x00: el paquete n lleva el byte n
+        byte[] clientNonce = range(16);
+        sender = new CryptState();
+        sender.setKey(KEY, clientNonce, SERVER_NONCE);
+        receiver = new CryptState();
+        receiver.setKey(KEY, SERVER_NONCE, clientNonce);
+    }
+    
+    // ==================== VECTORES ====================
+    
+    // draft-krovetz-ocb-00: clave y nonce 000102..0f, sin cabecera
+    
+    @Test
+    public void emptyMessageVector() throws Exception {
+        byte[] out = encryptWithVectorNonce(new byte[0]);
+        
+        assertEquals(CryptState.HEADER_SIZE, out.length);
+        assertEquals(0x00, out[0]);
+        assertArrayEquals(bytes(0xBF, 0x31, 0x08), Arrays.copyOfRange(out, 1, 4));
+    }
+    
+    @Test
+    public void fortyByteMessageVector() throws Exception {
+        byte[] out = encryptWithVectorNonce(range(40));
+        
+        byte[] expected = bytes(
+            0xF7, 0x5D, 0x6B, 0xC8, 0xB4, 0xDC, 0x8D, 0x66, 0xB8, 0x36, 0xA2, 0xB0, 0x8B, 0x32, 0xA6, 0x36,
+            0x9F, 0x1C, 0xD3, 0xC5, 0x22, 0x8D, 0x79, 0xFD, 0x6C, 0x26, 0x7F, 0x5F, 0x6A, 0xA7, 0xB2, 0x31,
+            0xC7, 0xDF, 0xB9, 0xD5, 0x99, 0x51, 0xAE, 0x9C);
+        assertEquals(CryptState.HEADER_SIZE + 40, out.length);
+        assertArrayEquals(bytes(0x9D, 0xB0, 0xCD), Arrays.copyOfRange(out, 1, 4));
+        assertArrayEquals(expected, Arrays.copyOfRange(out, CryptState.HEADER_SIZE, out.length));
+    }
+    
+    @Test
+    public void roundTripAllLengths() throws Exception {
+        for (int length = 0; length <= 64; length++) {
+            byte[] plain = range(length);
+            byte[] decrypted = decrypt(encrypt(plain));
+            assertArrayEquals("longitud " + length, plain, decrypted);
+        }
+        assertEquals(65, receiver.getGood());
+    }
+    
+    // ==================== IV ====================
+    
+    @Test
+    public void inOrder() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertDecrypts(encrypt(range(20)));
+        }
+        assertEquals(10, receiver.getGood());
+        assertEquals(0, receiver.getLate());
+        assertEquals(0, receiver.getLost());
+    }
+    
+    @Test
+    public void latePacket() throws Exception {
+        byte[] p1 = encrypt(range(20));
+        byte[] p2 = encrypt(range(20));
+        byte[] p3 = encrypt(range(20));
+        
+        assertDecrypts(p1);
+        assertDecrypts(p3);
+        assertEquals(1, receiver.getLost());
+        
+        assertDecrypts(p2);
+        assertEquals(1, receiver.getLate());
+        assertEquals(0, receiver.getLost());
+        
+        // El IV sigue en p3: el siguiente paquete va en orden
+        assertDecrypts(encrypt(range(20)));
+        assertEquals(4, receiver.getGood());
+    }
+    
+    @Test
+    public void lostPackets() throws Exception {
+        assertDecrypts(encrypt(range(20)));
+        for (int i = 0; i < 5; i++) {
+            encrypt(range(20));
+        }
+        assertDecrypts(encrypt(range(20)));
+        
+        assertEquals(2, receiver.getGood());
+        assertEquals(5, receiver.getLost());
+    }
+    
+    @Test
+    public void wrapInOrder() throws Exception {
+        // Más de una vuelta del byte bajo del IV
+        for (int i = 0; i < 600; i++) {
+            assertDecrypts(encrypt(range(20)));
+        }
+        assertEquals(600, receiver.getGood());
+        assertEquals(0, receiver.getLost());
+    }
+    
+    @Test
+    public void lostAcrossWrap() throws Exception {
+        // Byte bajo del IV en 0xFA tras 250 paquetes
+        for (int i = 0; i < 250; i++) {
+            assertDecrypts(encrypt(range(20)));
+        }
+        for (int i = 0; i < 10; i++) {
+            encrypt(range(20));
+        }
+        assertDecrypts(encrypt(range(20)));
+        
+        assertEquals(10, receiver.getLost());
+        assertDecrypts(encrypt(range(20)));
+    }
+    
+    @Test
+    public void lateAcrossWrap() throws Exception {
+        // El paquete tardío es de antes de la vuelta y llega después
+        for (int i = 0; i < 254; i++) {
+            assertDecrypts(encrypt(range(20)));
+        }
+        byte[] beforeWrap = encrypt(range(20));
+        byte[] afterWrap1 = encrypt(range(20));
+        byte[] afterWrap2 = encrypt(range(20));
+        
+        assertDecrypts(afterWrap1);
+        assertDecrypts(afterWrap2);
+        assertDecrypts(beforeWrap);
+        
+        assertEquals(1, receiver.getLate());
+        assertEquals(0, receiver.getLost());
+        assertDecrypts(encrypt(range(20)));
+    }
+    
+    // ==================== REPETICIONES ====================
+    
+    @Test
+    public void replayRejected() throws Exception {
+        byte[] p1 = encrypt(range(20));
+        assertDecrypts(p1);
+        assertRejected(p1);
+        assertEquals(1, receiver.getGood());
+    }
+    
+    @Test
+    public void lateReplayRejected() throws Exception {
+        byte[] p1 = encrypt(range(20));
+        byte[] p2 = encrypt(range(20));
+        byte[] p3 = encrypt(range(20));
+        
+        assertDecrypts(p1);
+        assertDecrypts(p3);
+        assertDecrypts(p2);
+        assertRejected(p2);
+        assertRejected(p1);
+        assertEquals(3, receiver.getGood());
+    }
+    
+    @Test
+    public void tamperedPacketRejected() throws Exception {
+        byte[] p1 = encrypt(range(20));
+        byte[] tampered = p1.clone();
+        tampered[CryptState.HEADER_SIZE + 5] ^= 1;
+        
+        assertRejected(tampered);
+        // Un paquete rechazado no mueve el IV
+        assertDecrypts(p1);
+        assertDecrypts(encrypt(range(20)));
+        assertEquals(0, receiver.getLost());
+    }
+    
+    // ==================== AUXILIARES ====================
+    
+    /**
+     * Cifrar con IV 000102..0f: encrypt() incrementa el nonce antes de usarlo
+     */
+    private static byte[] encryptWithVectorNonce(byte[] plain) throws Exception {
+        byte[] clientNonce = range(16);
+        clientNonce[0] = (byte) 0xFF;
+        clientNonce[1] = 0x00;
+        CryptState state = new CryptState();
+        state.setKey(KEY, clientNonce, SERVER_NONCE);
+        
+        byte[] out = new byte[plain.length + CryptState.HEADER_SIZE];
+        assertEquals(out.length, state.encrypt(plain, 0, plain.length, out, 0));
+        return out;
+    }
+    
+    private byte[] encrypt(byte[] plain) throws Exception {
+        byte[] out = new byte[plain.length + CryptState.HEADER_SIZE];
+        sender.encrypt(plain, 0, plain.length, out, 0);
+        return out;
+    }
+    
+    private byte[] decrypt(byte[] packet) throws Exception {
+        byte[] plain = new byte[packet.length];
+        int length = receiver.decrypt(packet, 0, packet.length, plain, 0);
+        return length < 0 ? null : Arrays.copyOf(plain, length);
+    }
+    
+    private void assertDecrypts(byte[] packet) throws Exception {
+        assertArrayEquals(range(packet.length - CryptState.HEADER_SIZE), decrypt(packet));
+    }
+    
+    private void assertRejected(byte[] packet) throws Exception {
+        byte[] plain = new byte[packet.length];
+        assertEquals(-1, receiver.decrypt(packet, 0, packet.length, plain, 0));
+    }
+    
+    private static byte[] range(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+    
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+}